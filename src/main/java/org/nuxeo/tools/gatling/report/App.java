@@ -20,6 +20,10 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 
@@ -28,12 +32,26 @@ import com.beust.jcommander.JCommander;
 public class App implements Runnable {
     protected static final String PROGRAM_NAME = "java -jar gatling-report.jar";
 
+    // a request line of ~100 bytes is kept as a ~30 bytes sample
+    protected static final double MEMORY_PER_BYTE = 0.3;
+
+    protected static final int GZ_RATIO = 10;
+
     private final static Logger log = Logger.getLogger(App.class);
 
     protected final Options options;
 
     protected List<SimulationContext> stats;
 
+    protected StatConfig statConfig;
+
+    // true when the report is rendered again in follow mode
+    protected boolean refreshing;
+
+    protected File outputDirectory;
+
+    protected Downloader downloader;
+
     public App(String[] args) {
         options = new Options();
         JCommander command = new JCommander(options, args);
@@ -50,25 +68,198 @@ public class App implements Runnable {
 
     @Override
     public void run() {
+        statConfig = options.getStatConfig();
+        log.info("Statistics: " + statConfig + ", percentiles: " + statConfig.getPercentileNames());
+        if (options.follow) {
+            followSimulationFiles();
+            return;
+        }
+        if (options.outputDirectory != null) {
+            // before parsing, the Graphite images are downloaded there as soon as a simulation is parsed
+            getOutputDirectory();
+        }
         parseSimulationFiles();
+        if (options.history != null) {
+            appendHistory();
+        }
         render();
     }
 
-    protected void parseSimulationFiles() {
-        stats = new ArrayList<>(options.simulations.size());
-        options.simulations.forEach(simulation -> parseSimulationFile(new File(simulation)));
+    protected void appendHistory() {
+        SummaryStore store = new SummaryStore(new File(options.history));
+        for (SimulationContext context : stats) {
+            try {
+                if (store.append(context)) {
+                    log.info("Appended to history: " + context.getSimulationName());
+                } else {
+                    log.info("Already in history: " + context.getSimulationName());
+                }
+            } catch (IOException e) {
+                log.error("Can not append to history: " + options.history, e);
+            }
+        }
     }
 
-    protected void parseSimulationFile(File file) {
-        log.info("Parsing " + file.getAbsolutePath());
+    /**
+     * Parses the lines appended to the simulation files and renders the report at each refresh interval, until
+     * interrupted.
+     */
+    protected void followSimulationFiles() {
+        List<SimulationFollower> followers = new ArrayList<>();
+        options.simulations.forEach(
+                simulation -> followers.add(new SimulationFollower(new File(simulation), options.apdexT, statConfig)));
         try {
-            SimulationParser parser = ParserFactory.getParser(file, options.apdexT);
-            stats.add(parser.parse());
+            while (!Thread.currentThread().isInterrupted()) {
+                long t0 = System.currentTimeMillis();
+                long lines = 0;
+                stats = new ArrayList<>(followers.size());
+                for (SimulationFollower follower : followers) {
+                    lines += follower.update();
+                    SimulationContext context = follower.getContext();
+                    if (context != null) {
+                        context.computeStat();
+                        // the Graphite images are downloaded again for the new time range
+                        context.simStat.graphite = null;
+                        context.simStat.metrics.clear();
+                        stats.add(context);
+                    }
+                }
+                if (stats.size() == followers.size()) {
+                    render();
+                    refreshing = true;
+                    log.info(String.format("Refreshed with %d new lines in %d ms", lines,
+                            System.currentTimeMillis() - t0));
+                }
+                Thread.sleep(options.refresh * 1000L);
+            }
         } catch (IOException e) {
-            log.error("Invalid file: " + file.getAbsolutePath(), e);
+            log.error("Can not follow simulations", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (SimulationFollower follower : followers) {
+                try {
+                    follower.close();
+                } catch (IOException e) {
+                    log.debug("Close error", e);
+                }
+            }
+        }
+    }
+
+    protected void parseSimulationFiles() {
+        int nbSimulation = options.simulations.size();
+        stats = new ArrayList<>(nbSimulation);
+        int poolSize = Math.max(1, Math.min(options.parseWorkers, nbSimulation));
+        ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+        ParseMemory availableMemory = new ParseMemory(
+                (int) Math.max(1, Math.min(Integer.MAX_VALUE, options.parseMemory)));
+        try {
+            List<Future<SimulationContext>> futures = new ArrayList<>(nbSimulation);
+            options.simulations.forEach(simulation -> futures.add(
+                    pool.submit(() -> parseSimulationFile(new File(simulation), availableMemory))));
+            // keep the command line order
+            for (int i = 0; i < nbSimulation; i++) {
+                try {
+                    stats.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    log.error("Invalid file: " + new File(options.simulations.get(i)).getAbsolutePath(),
+                            e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while parsing simulations", e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    protected SimulationContext parseSimulationFile(File file, ParseMemory availableMemory)
+            throws IOException, InterruptedException {
+        int permits = getEstimatedMemory(file);
+        availableMemory.acquire(permits);
+        boolean parsed = false;
+        try {
+            log.info("Parsing " + file.getAbsolutePath());
+            SimulationParser parser = ParserFactory.getParser(file, options.apdexT)
+                                                   .setParallelism(options.parseThreads)
+                                                   .setStatConfig(statConfig)
+                                                   .setCache(options.getCache());
+            SimulationContext ret = parser.parse();
+            if (options.graphiteUrl != null && options.outputDirectory != null) {
+                // the images are downloaded while the other simulations are parsed
+                try {
+                    ret.simStat.graphite = new Graphite(options.graphiteUrl, options.user, options.password, ret,
+                            getOutputDirectory(), options.getZoneId(), getDownloader(), options.graphiteSeries);
+                } catch (IllegalArgumentException e) {
+                    log.warn("Graphite dashboard not loaded: " + e.getMessage());
+                }
+            }
+            if (options.prometheusUrl != null && options.outputDirectory != null) {
+                ret.simStat.metrics.add(
+                        new Prometheus(options.prometheusUrl, options.prometheusQueries, ret, getDownloader()));
+            }
+            parsed = true;
+            return ret;
+        } finally {
+            // the memory of a parsed context stays in use until the report is rendered
+            availableMemory.parsed(parsed ? 0 : permits);
         }
     }
 
+    /**
+     * The heap shared by the parsed contexts and the ones being parsed, a parsing waits until enough memory is
+     * available unless no other file is being parsed.
+     */
+    protected static class ParseMemory {
+        protected int available;
+
+        protected int parsing;
+
+        public ParseMemory(int memory) {
+            this.available = memory;
+        }
+
+        public synchronized void acquire(int permits) throws InterruptedException {
+            while (permits > available && parsing > 0) {
+                wait();
+            }
+            if (permits > available) {
+                log.warn(String.format("Parsing alone, %d MB over the --parse-memory limit", permits - available));
+            }
+            available -= permits;
+            parsing++;
+        }
+
+        /**
+         * Ends a parsing, giving back the memory of a failed one.
+         */
+        public synchronized void parsed(int permits) {
+            available += permits;
+            parsing--;
+            notifyAll();
+        }
+    }
+
+    protected synchronized Downloader getDownloader() {
+        if (downloader == null) {
+            downloader = options.getDownloader();
+        }
+        return downloader;
+    }
+
+    /**
+     * Returns a rough estimation in MB of the heap needed to parse a simulation file.
+     */
+    protected int getEstimatedMemory(File file) {
+        long size = file.length();
+        if (Utils.GZ.equals(Utils.getFileExtension(file))) {
+            size *= GZ_RATIO;
+        }
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, size * MEMORY_PER_BYTE / (1024 * 1024)));
+    }
+
     protected void render() {
         if (options.outputDirectory == null) {
             renderAsCsv();
@@ -81,29 +272,46 @@ public class App implements Runnable {
         }
     }
 
-    protected void renderAsReport() throws IOException {
-        File dir = new File(options.outputDirectory);
-        if (!dir.mkdirs()) {
-            if (!options.force) {
-                log.error("Abort, report directory already exists, use -f to override.");
-                System.exit(-2);
+    protected synchronized File getOutputDirectory() {
+        if (outputDirectory == null) {
+            File dir = new File(options.outputDirectory);
+            if (!dir.mkdirs() && !refreshing) {
+                if (!options.force) {
+                    log.error("Abort, report directory already exists, use -f to override.");
+                    System.exit(-2);
+                }
+                log.warn("Overriding existing report directory" + options.outputDirectory);
             }
-            log.warn("Overriding existing report directory" + options.outputDirectory);
+            outputDirectory = dir;
+        }
+        return outputDirectory;
+    }
+
+    protected void renderAsReport() throws IOException {
+        List<SummaryStore.Run> history = null;
+        if (options.history != null && options.historyTrend) {
+            history = new SummaryStore(new File(options.history)).getRuns();
         }
-        String reportPath = new Report(stats).setOutputDirectory(dir)
+        String reportPath = new Report(stats).setOutputDirectory(getOutputDirectory())
                                              .includeJs(options.includeJs)
                                              .setTemplate(options.template)
                                              .includeGraphite(options.graphiteUrl, options.user, options.password,
                                                      options.getZoneId())
+                                             .setDownloader(getDownloader())
+                                             .graphiteSeries(options.graphiteSeries)
+                                             .includePrometheus(options.prometheusUrl, options.prometheusQueries)
                                              .yamlReport(options.yaml)
                                              .withMap(options.map)
                                              .setFilename(options.outputName)
+                                             .gzip(options.gzip)
+                                             .lazy(options.lazy)
+                                             .setHistory(history)
                                              .create();
         log.info("Report generated: " + reportPath);
     }
 
     protected void renderAsCsv() {
-        System.out.println(RequestStat.header());
+        System.out.println(RequestStat.header(statConfig));
         stats.forEach(System.out::println);
     }
 }
@@ -0,0 +1,403 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+
+/**
+ * Request durations per level of active users, using the log-linear latency buckets of the {@link Heatmap}, and the
+ * time spent at each level.
+ * <p>
+ * The levels of a chunk are relative to the level at the start of the chunk, they are shifted when merging.
+ *
+ * @since 4.1
+ */
+public class Concurrency {
+
+    // level of the first index
+    protected int origin;
+
+    protected int[][] latencies = new int[0][];
+
+    protected long[] counts = new long[0];
+
+    protected long[] successes = new long[0];
+
+    protected long[] millis = new long[0];
+
+    public void record(int level, long duration, boolean success) {
+        int index = index(level);
+        int[] row = latencies[index];
+        if (row == null) {
+            row = new int[Heatmap.LATENCY_BUCKETS];
+            latencies[index] = row;
+        }
+        row[Heatmap.latencyBucket(duration)]++;
+        counts[index]++;
+        if (success) {
+            successes[index]++;
+        }
+    }
+
+    /**
+     * Accounts the time spent at a level.
+     */
+    public void addTime(int level, long ms) {
+        // the index may grow the arrays
+        int index = index(level);
+        millis[index] += ms;
+    }
+
+    /**
+     * Moves all the levels by a delta.
+     */
+    public void shift(int delta) {
+        origin += delta;
+    }
+
+    public void merge(Concurrency other) {
+        for (int i = 0; i < other.counts.length; i++) {
+            if (other.counts[i] == 0 && other.millis[i] == 0) {
+                continue;
+            }
+            int index = index(other.origin + i);
+            if (other.latencies[i] != null) {
+                if (latencies[index] == null) {
+                    latencies[index] = other.latencies[i];
+                } else {
+                    for (int j = 0; j < Heatmap.LATENCY_BUCKETS; j++) {
+                        latencies[index][j] += other.latencies[i][j];
+                    }
+                }
+            }
+            counts[index] += other.counts[i];
+            successes[index] += other.successes[i];
+            millis[index] += other.millis[i];
+        }
+    }
+
+    protected int index(int level) {
+        int length = counts.length;
+        if (length == 0) {
+            origin = level;
+        }
+        if (level < origin) {
+            // only at the start of a chunk when users ended before being started
+            int grow = Math.max(origin - level, 16);
+            latencies = prepend(latencies, grow);
+            counts = prepend(counts, grow);
+            successes = prepend(successes, grow);
+            millis = prepend(millis, grow);
+            origin -= grow;
+        } else if (level - origin >= length) {
+            int size = Math.max(level - origin + 1, Math.max(16, length * 2));
+            latencies = Arrays.copyOf(latencies, size);
+            counts = Arrays.copyOf(counts, size);
+            successes = Arrays.copyOf(successes, size);
+            millis = Arrays.copyOf(millis, size);
+        }
+        return level - origin;
+    }
+
+    protected static int[][] prepend(int[][] array, int grow) {
+        int[][] ret = new int[array.length + grow][];
+        System.arraycopy(array, 0, ret, grow, array.length);
+        return ret;
+    }
+
+    protected static long[] prepend(long[] array, int grow) {
+        long[] ret = new long[array.length + grow];
+        System.arraycopy(array, 0, ret, grow, array.length);
+        return ret;
+    }
+
+    /**
+     * The durations of all the levels per latency bucket of the {@link Heatmap}.
+     */
+    public long[] getLatencies() {
+        long[] ret = new long[Heatmap.LATENCY_BUCKETS];
+        for (int[] row : latencies) {
+            if (row == null) {
+                continue;
+            }
+            for (int j = 0; j < row.length; j++) {
+                ret[j] += row[j];
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Computes the curve of the levels having requests.
+     *
+     * @param times the time spent at each level by the simulation
+     * @param usl fits the Universal Scalability Law on the throughput
+     */
+    public Curve getCurve(Concurrency times, boolean usl) {
+        List<Level> levels = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++) {
+            int users = origin + i;
+            if (users <= 0 || counts[i] == 0) {
+                continue;
+            }
+            int index = users - times.origin;
+            long ms = index >= 0 && index < times.millis.length ? times.millis[index] : 0;
+            levels.add(new Level(users, ms, counts[i], successes[i], latencies[i]));
+        }
+        return new Curve(levels, usl ? Usl.fit(levels) : null);
+    }
+
+    public static class Level {
+        protected final int users;
+
+        protected final double seconds;
+
+        protected final long count;
+
+        protected final double throughput;
+
+        protected final long p50, p95;
+
+        public Level(int users, long millis, long count, long successes, int[] latencies) {
+            this.users = users;
+            this.seconds = millis / 1000.0;
+            this.count = count;
+            this.throughput = millis == 0 ? 0 : successes * 1000.0 / millis;
+            this.p50 = percentile(latencies, count, 50);
+            this.p95 = percentile(latencies, count, 95);
+        }
+
+        protected static long percentile(int[] latencies, long count, double percentile) {
+            long rank = (long) Math.ceil(percentile / 100.0 * count);
+            long cumulated = 0;
+            for (int j = 0; j < latencies.length; j++) {
+                cumulated += latencies[j];
+                if (cumulated >= rank) {
+                    return Heatmap.upperBound(j);
+                }
+            }
+            return 0;
+        }
+
+        public int getUsers() {
+            return users;
+        }
+
+        public double getSeconds() {
+            return seconds;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getThroughput() {
+            return throughput;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP95() {
+            return p95;
+        }
+    }
+
+    /**
+     * The statistics per level of active users, with the series to plot.
+     */
+    public static class Curve {
+        protected final List<Level> levels;
+
+        protected final Usl usl;
+
+        public Curve(List<Level> levels, Usl usl) {
+            this.levels = levels;
+            this.usl = usl;
+        }
+
+        public List<Level> getLevels() {
+            return levels;
+        }
+
+        /**
+         * The fit of the Universal Scalability Law, null if not requested or not enough levels.
+         */
+        public Usl getUsl() {
+            return usl;
+        }
+
+        public List<Integer> getUsers() {
+            return series(level -> level.users);
+        }
+
+        public List<Double> getThroughput() {
+            return series(level -> Math.round(level.throughput * 100) / 100.0);
+        }
+
+        public List<Long> getP50() {
+            return series(level -> level.p50);
+        }
+
+        public List<Long> getP95() {
+            return series(level -> level.p95);
+        }
+
+        /**
+         * The throughput predicted by the Universal Scalability Law at each level.
+         */
+        public List<Double> getPredicted() {
+            if (usl == null) {
+                return null;
+            }
+            return series(level -> Math.round(usl.getThroughput(level.users) * 100) / 100.0);
+        }
+
+        protected <T> List<T> series(Function<Level, T> value) {
+            return new JsonList<T>() {
+                @Override
+                public T get(int index) {
+                    return value.apply(levels.get(index));
+                }
+
+                @Override
+                public int size() {
+                    return levels.size();
+                }
+            };
+        }
+    }
+
+    /**
+     * Universal Scalability Law X(N) = lambda N / (1 + sigma (N - 1) + kappa N (N - 1)), fitted with a weighted least
+     * squares regression of N / X(N) on a polynomial of N, weighted by the time spent at each level.
+     */
+    public static class Usl {
+        protected final double lambda, sigma, kappa;
+
+        public Usl(double lambda, double sigma, double kappa) {
+            this.lambda = lambda;
+            this.sigma = sigma;
+            this.kappa = kappa;
+        }
+
+        /**
+         * Returns null if there are less than 3 levels with a throughput or if the fit is degenerated.
+         */
+        public static Usl fit(List<Level> levels) {
+            // normal equations of y = a + b (N - 1) + c N (N - 1)
+            double[][] m = new double[3][4];
+            int points = 0;
+            for (Level level : levels) {
+                if (level.throughput <= 0) {
+                    continue;
+                }
+                double n = level.users;
+                double[] x = { 1, n - 1, n * (n - 1) };
+                double y = n / level.throughput;
+                double w = level.seconds;
+                for (int i = 0; i < 3; i++) {
+                    for (int j = 0; j < 3; j++) {
+                        m[i][j] += w * x[i] * x[j];
+                    }
+                    m[i][3] += w * x[i] * y;
+                }
+                points++;
+            }
+            if (points < 3) {
+                return null;
+            }
+            double[] coefficients = solve(m);
+            if (coefficients == null || coefficients[0] <= 0) {
+                return null;
+            }
+            double a = coefficients[0];
+            return new Usl(1 / a, coefficients[1] / a, coefficients[2] / a);
+        }
+
+        // gaussian elimination with partial pivoting
+        protected static double[] solve(double[][] m) {
+            int n = m.length;
+            for (int col = 0; col < n; col++) {
+                int pivot = col;
+                for (int row = col + 1; row < n; row++) {
+                    if (Math.abs(m[row][col]) > Math.abs(m[pivot][col])) {
+                        pivot = row;
+                    }
+                }
+                if (Math.abs(m[pivot][col]) < 1e-12) {
+                    return null;
+                }
+                double[] tmp = m[col];
+                m[col] = m[pivot];
+                m[pivot] = tmp;
+                for (int row = col + 1; row < n; row++) {
+                    double factor = m[row][col] / m[col][col];
+                    for (int k = col; k <= n; k++) {
+                        m[row][k] -= factor * m[col][k];
+                    }
+                }
+            }
+            double[] ret = new double[n];
+            for (int row = n - 1; row >= 0; row--) {
+                double sum = m[row][n];
+                for (int k = row + 1; k < n; k++) {
+                    sum -= m[row][k] * ret[k];
+                }
+                ret[row] = sum / m[row][row];
+            }
+            return ret;
+        }
+
+        public double getThroughput(double users) {
+            return lambda * users / (1 + sigma * (users - 1) + kappa * users * (users - 1));
+        }
+
+        public double getLambda() {
+            return lambda;
+        }
+
+        public double getSigma() {
+            return sigma;
+        }
+
+        public double getKappa() {
+            return kappa;
+        }
+
+        /**
+         * The number of users giving the highest throughput, infinite when there is no coherency penalty.
+         */
+        public double getPeakUsers() {
+            if (kappa <= 0 || sigma >= 1) {
+                return Double.POSITIVE_INFINITY;
+            }
+            return Math.round(Math.sqrt((1 - sigma) / kappa) * 10) / 10.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "lambda=%.3f sigma=%.5f kappa=%.6f peakUsers=%.1f",
+                    lambda, sigma, kappa, getPeakUsers());
+        }
+    }
+}
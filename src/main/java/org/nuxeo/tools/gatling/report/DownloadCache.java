@@ -0,0 +1,138 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An on-disk cache of downloaded resources, content addressed by the SHA-256 of their URL, which holds the time
+ * window requested.
+ * <p>
+ * The resources of a closed window never change, their entries are immutable. The entries of a window still open
+ * expire after a time to live.
+ *
+ * @since 4.1
+ */
+public class DownloadCache {
+    private final static Logger log = Logger.getLogger(DownloadCache.class);
+
+    public static final long DEFAULT_TTL = 10 * 60 * 1000L;
+
+    protected static final String IMMUTABLE = ".immutable";
+
+    protected static final String EXPIRING = ".ttl";
+
+    protected final File directory;
+
+    protected final long ttl;
+
+    /**
+     * @param ttl the time to live in ms of the entries that are not immutable
+     */
+    public DownloadCache(File directory, long ttl) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Invalid cache directory: " + directory);
+        }
+        this.directory = directory;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Returns the cached file or null when missing or expired.
+     *
+     * @param immutable only an entry written as immutable is used, an entry written while the window was open may be
+     *            incomplete
+     */
+    public File get(URL url, boolean immutable) {
+        String key = getKey(url);
+        File ret = new File(directory, key + IMMUTABLE);
+        if (ret.isFile()) {
+            return ret;
+        }
+        if (immutable) {
+            return null;
+        }
+        ret = new File(directory, key + EXPIRING);
+        if (ret.isFile() && System.currentTimeMillis() - ret.lastModified() < ttl) {
+            return ret;
+        }
+        return null;
+    }
+
+    /**
+     * Copies a downloaded file in the cache.
+     */
+    public void put(URL url, File file, boolean immutable) {
+        put(url, immutable, tmp -> Files.copy(file.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING));
+    }
+
+    public void put(URL url, byte[] content, boolean immutable) {
+        put(url, immutable, tmp -> Files.write(tmp.toPath(), content));
+    }
+
+    /**
+     * Writes a temporary file that replaces the entry atomically, so a concurrent reader never sees a partial entry.
+     */
+    protected void put(URL url, boolean immutable, FileWriter writer) {
+        File dest = new File(directory, getKey(url) + (immutable ? IMMUTABLE : EXPIRING));
+        try {
+            File tmp = File.createTempFile("download", ".tmp", directory);
+            try {
+                writer.write(tmp);
+                Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+        } catch (IOException e) {
+            // the cache is an optimization
+            log.warn("Can not cache " + url + ": " + e.getMessage());
+        }
+    }
+
+    protected interface FileWriter {
+        void write(File file) throws IOException;
+    }
+
+    protected static String getKey(URL url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                                         .digest(url.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder ret = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                ret.append(String.format("%02x", b));
+            }
+            return ret.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadCache(" + directory + ", ttl=" + ttl / 1000 + "s)";
+    }
+}
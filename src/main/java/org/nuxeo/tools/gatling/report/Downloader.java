@@ -0,0 +1,275 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Downloads HTTP resources concurrently on a bounded pool, with connect and read timeouts and retries with an
+ * exponential backoff. The responses are fully read so that the JDK keeps the connections alive and reuses them.
+ *
+ * @since 4.1
+ */
+public class Downloader implements Closeable {
+    private final static Logger log = Logger.getLogger(Downloader.class);
+
+    public static final int DEFAULT_THREADS = 4;
+
+    public static final int DEFAULT_TIMEOUT = 30000;
+
+    public static final int DEFAULT_RETRIES = 2;
+
+    protected static final int DEFAULT_BACKOFF = 500;
+
+    protected int threads = DEFAULT_THREADS;
+
+    protected int connectTimeout = DEFAULT_TIMEOUT;
+
+    protected int readTimeout = DEFAULT_TIMEOUT;
+
+    protected int retries = DEFAULT_RETRIES;
+
+    protected long backoff = DEFAULT_BACKOFF;
+
+    protected ExecutorService pool;
+
+    protected DownloadCache cache;
+
+    public Downloader setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads: " + threads);
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param connectTimeout in ms
+     * @param readTimeout in ms, the maximum time waiting for data
+     */
+    public Downloader setTimeouts(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    /**
+     * @param retries the number of attempts after the first failure
+     * @param backoff the delay in ms before the first retry, doubled at each retry
+     */
+    public Downloader setRetries(int retries, long backoff) {
+        this.retries = retries;
+        this.backoff = backoff;
+        return this;
+    }
+
+    /**
+     * Serves the downloads from an on-disk cache when possible, null for no cache.
+     */
+    public Downloader setCache(DownloadCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    public String getContent(URL url) throws IOException {
+        return getContent(url, false);
+    }
+
+    /**
+     * @param immutable the resource never changes, its cached copy does not expire
+     */
+    public String getContent(URL url, boolean immutable) throws IOException {
+        File cached = cache == null ? null : cache.get(url, immutable);
+        if (cached != null) {
+            log.debug("Cached: " + url);
+            return new String(Files.readAllBytes(cached.toPath()), StandardCharsets.UTF_8);
+        }
+        byte[] ret = retry(url, () -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            read(url, out);
+            return out.toByteArray();
+        });
+        if (cache != null) {
+            cache.put(url, ret, immutable);
+        }
+        return new String(ret, StandardCharsets.UTF_8);
+    }
+
+    public void download(URL url, File dest) throws IOException {
+        download(url, dest, false);
+    }
+
+    /**
+     * @param immutable the resource never changes, its cached copy does not expire
+     */
+    public void download(URL url, File dest, boolean immutable) throws IOException {
+        File cached = cache == null ? null : cache.get(url, immutable);
+        if (cached != null) {
+            log.debug("Cached: " + url);
+            Files.copy(cached.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        retry(url, () -> {
+            try (OutputStream out = new FileOutputStream(dest)) {
+                read(url, out);
+            }
+            return dest;
+        });
+        if (cache != null) {
+            cache.put(url, dest, immutable);
+        }
+    }
+
+    /**
+     * Gets the content on the pool.
+     */
+    public Future<String> submit(URL url, boolean immutable) {
+        return getPool().submit(() -> getContent(url, immutable));
+    }
+
+    /**
+     * Downloads on the pool, at most the number of threads at the same time.
+     */
+    public Future<File> submit(URL url, File dest, boolean immutable) {
+        return getPool().submit(() -> {
+            download(url, dest, immutable);
+            return dest;
+        });
+    }
+
+    protected synchronized ExecutorService getPool() {
+        if (pool == null) {
+            AtomicInteger count = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread ret = new Thread(runnable, "downloader-" + count.incrementAndGet());
+                ret.setDaemon(true);
+                return ret;
+            });
+        }
+        return pool;
+    }
+
+    protected <T> T retry(URL url, IOCallable<T> request) throws IOException {
+        long delay = backoff;
+        for (int attempt = 0;; attempt++) {
+            try {
+                return request.call();
+            } catch (HttpException e) {
+                if (attempt >= retries || !e.isTransient()) {
+                    throw e;
+                }
+                log.debug(String.format("Retrying %s in %d ms: %s", url, delay, e.getMessage()));
+            } catch (IOException e) {
+                if (attempt >= retries) {
+                    throw e;
+                }
+                log.debug(String.format("Retrying %s in %d ms: %s", url, delay, e));
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while downloading " + url, e);
+            }
+            delay *= 2;
+        }
+    }
+
+    protected void read(URL url, OutputStream out) throws IOException {
+        URLConnection conn = url.openConnection();
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        if (conn instanceof HttpURLConnection) {
+            HttpURLConnection http = (HttpURLConnection) conn;
+            int status = http.getResponseCode();
+            if (status >= 400) {
+                // the error body is consumed to keep the connection alive
+                try (InputStream error = http.getErrorStream()) {
+                    if (error != null) {
+                        copy(error, null);
+                    }
+                }
+                throw new HttpException(url, status);
+            }
+        }
+        try (InputStream in = conn.getInputStream()) {
+            copy(in, out);
+        }
+    }
+
+    protected static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (out != null) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    protected interface IOCallable<T> {
+        T call() throws IOException;
+    }
+
+    public static class HttpException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        protected final int status;
+
+        public HttpException(URL url, int status) {
+            super(String.format("HTTP %d on %s", status, url));
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * Server errors and throttling are retried, not the client errors.
+         */
+        public boolean isTransient() {
+            return status >= 500 || status == 429;
+        }
+    }
+}
@@ -0,0 +1,590 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * A growable list of durations in milliseconds stored as primitive ints in fixed size chunks. The chunks are either
+ * heap arrays or direct buffers allocated outside of the Java heap.
+ * <p>
+ * With a memory budget, the chunks are sorted and merged into a run file when the budget is exhausted, the sorted
+ * values are then read with an external k-way merge of at most {@link #MAX_FAN_IN} run files.
+ *
+ * @since 4.1
+ */
+public class Durations {
+
+    protected static final int CHUNK_SHIFT = 13;
+
+    protected static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    protected static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    protected static final int CHUNK_BYTES = CHUNK_SIZE * Integer.BYTES;
+
+    protected static final int RUN_BUFFER_SIZE = 64 * 1024;
+
+    // the maximum number of run files read at the same time, more runs are merged in cascading passes
+    protected static final int MAX_FAN_IN = 64;
+
+    protected final boolean offHeap;
+
+    protected final MemoryBudget budget;
+
+    // sorted run files of the spilled durations
+    protected final List<File> runs = new ArrayList<>();
+
+    protected long spilledCount, spilledSum;
+
+    // read by the budget to find the largest lists
+    protected volatile int allocatedChunks;
+
+    // set by the budget when other lists need memory, the list spills at its next chunk
+    protected volatile boolean spillRequested;
+
+    protected IntBuffer[] chunks = new IntBuffer[4];
+
+    protected int size;
+
+    protected boolean sorted = true;
+
+    protected int last;
+
+    public Durations(boolean offHeap) {
+        this(offHeap, null);
+    }
+
+    public Durations(boolean offHeap, MemoryBudget budget) {
+        this.offHeap = offHeap;
+        this.budget = budget;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * The number of durations in memory.
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isSpilled() {
+        return !runs.isEmpty();
+    }
+
+    public long getSpilledCount() {
+        return spilledCount;
+    }
+
+    /**
+     * The sum of the spilled durations.
+     */
+    public long getSpilledSum() {
+        return spilledSum;
+    }
+
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    public void add(long duration) {
+        // a duration of more than 24 days is not a meaningful measure
+        int value = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, duration));
+        if ((size & CHUNK_MASK) == 0) {
+            // may spill the current chunks
+            IntBuffer buffer = newChunk();
+            int chunk = size >>> CHUNK_SHIFT;
+            if (chunk == chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunk * 2);
+            }
+            chunks[chunk] = buffer;
+        }
+        if (size > 0 && value < last) {
+            sorted = false;
+        }
+        last = value;
+        chunks[size >>> CHUNK_SHIFT].put(size & CHUNK_MASK, value);
+        size++;
+    }
+
+    /**
+     * Moves the durations of the other list into this one.
+     */
+    public void addAll(Durations other) {
+        runs.addAll(other.runs);
+        spilledCount += other.spilledCount;
+        spilledSum += other.spilledSum;
+        other.runs.clear();
+        other.spilledCount = 0;
+        other.spilledSum = 0;
+        for (int i = 0; i < other.size; i++) {
+            add(other.get(i));
+        }
+        other.release();
+    }
+
+    public int get(int index) {
+        return chunks[index >>> CHUNK_SHIFT].get(index & CHUNK_MASK);
+    }
+
+    /**
+     * Sorts the durations: each chunk is sorted then the chunks are merged.
+     */
+    public void sort() {
+        if (sorted) {
+            return;
+        }
+        int count = getChunkCount();
+        if (count > 1) {
+            // the sorted copy replaces the chunks, it is reserved while both exist
+            long copy = (long) count * CHUNK_BYTES;
+            if (budget != null) {
+                budget.forceReserve(copy);
+            }
+            Durations target = new Durations(offHeap);
+            mergeChunks(target::add);
+            chunks = target.chunks;
+            if (budget != null) {
+                budget.release(copy);
+            }
+        } else {
+            sortChunks();
+        }
+        last = get(size - 1);
+        sorted = true;
+    }
+
+    protected int getChunkCount() {
+        return (size + CHUNK_MASK) >>> CHUNK_SHIFT;
+    }
+
+    /**
+     * Sorts each chunk in place.
+     */
+    protected void sortChunks() {
+        if (sorted) {
+            return;
+        }
+        int[] buffer = null;
+        for (int i = 0; i < getChunkCount(); i++) {
+            int length = Math.min(CHUNK_SIZE, size - (i << CHUNK_SHIFT));
+            IntBuffer chunk = chunks[i];
+            if (chunk.hasArray()) {
+                Arrays.sort(chunk.array(), chunk.arrayOffset(), chunk.arrayOffset() + length);
+            } else {
+                if (buffer == null) {
+                    buffer = new int[CHUNK_SIZE];
+                }
+                ((Buffer) chunk).position(0);
+                chunk.get(buffer, 0, length);
+                Arrays.sort(buffer, 0, length);
+                ((Buffer) chunk).position(0);
+                chunk.put(buffer, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Streams the durations in order with a k-way merge of the sorted chunks, without a sorted copy.
+     */
+    protected void mergeChunks(IntConsumer target) {
+        sortChunks();
+        int count = getChunkCount();
+        Durations[] sources = new Durations[count];
+        int[] from = new int[count];
+        int[] to = new int[count];
+        for (int i = 0; i < count; i++) {
+            sources[i] = this;
+            from[i] = i << CHUNK_SHIFT;
+            to[i] = Math.min(size, from[i] + CHUNK_SIZE);
+        }
+        merge(sources, from, to, target);
+    }
+
+    /**
+     * K-way merge of sorted durations into a new sorted list.
+     */
+    public static Durations merge(List<Durations> sources, boolean offHeap) {
+        return merge(sources, offHeap, null);
+    }
+
+    public static Durations merge(List<Durations> sources, boolean offHeap, MemoryBudget budget) {
+        Durations[] stores = sources.toArray(new Durations[0]);
+        int[] from = new int[stores.length];
+        int[] to = new int[stores.length];
+        for (int i = 0; i < stores.length; i++) {
+            if (!stores[i].sorted) {
+                throw new IllegalArgumentException("Durations must be sorted before merge");
+            }
+            to[i] = stores[i].size;
+        }
+        Durations ret = new Durations(offHeap, budget);
+        merge(stores, from, to, ret::add);
+        return ret;
+    }
+
+    /**
+     * Merges the sorted ranges using a binary heap of range indexes, the range starts are used as cursors.
+     */
+    protected static void merge(Durations[] stores, int[] from, int[] to, IntConsumer target) {
+        int[] heap = new int[stores.length];
+        int size = 0;
+        for (int i = 0; i < stores.length; i++) {
+            if (from[i] < to[i]) {
+                heap[size++] = i;
+            }
+        }
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(stores, from, heap, size, i);
+        }
+        while (size > 0) {
+            int top = heap[0];
+            target.accept(stores[top].get(from[top]++));
+            if (from[top] == to[top]) {
+                heap[0] = heap[--size];
+            }
+            if (size > 0) {
+                siftDown(stores, from, heap, size, 0);
+            }
+        }
+    }
+
+    protected static void siftDown(Durations[] stores, int[] pos, int[] heap, int size, int i) {
+        int item = heap[i];
+        int value = stores[item].get(pos[item]);
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size
+                    && stores[heap[child + 1]].get(pos[heap[child + 1]]) < stores[heap[child]].get(pos[heap[child]])) {
+                child++;
+            }
+            if (value <= stores[heap[child]].get(pos[heap[child]])) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = item;
+    }
+
+    /**
+     * Streams the sorted durations of all the lists, in memory or spilled, to the consumer. The chunks in memory are
+     * sorted in place and read directly, when there are more than {@link #MAX_FAN_IN} run files they are first
+     * merged into intermediate runs.
+     */
+    public static void forEachSorted(List<Durations> sources, IntConsumer consumer) {
+        List<File> runs = new ArrayList<>();
+        File directory = null;
+        for (Durations source : sources) {
+            runs.addAll(source.runs);
+            if (source.budget != null) {
+                directory = source.budget.getDirectory();
+            }
+        }
+        List<File> intermediates = new ArrayList<>();
+        List<Cursor> cursors = new ArrayList<>();
+        try {
+            while (runs.size() > MAX_FAN_IN) {
+                List<File> next = new ArrayList<>();
+                for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+                    List<File> group = runs.subList(i, Math.min(runs.size(), i + MAX_FAN_IN));
+                    if (group.size() == 1) {
+                        next.add(group.get(0));
+                        continue;
+                    }
+                    File merged = mergeRuns(group, directory, null);
+                    intermediates.add(merged);
+                    next.add(merged);
+                }
+                runs = next;
+            }
+            for (File run : runs) {
+                cursors.add(new RunCursor(run));
+            }
+            for (Durations source : sources) {
+                source.sortChunks();
+                for (int i = 0; i < source.getChunkCount(); i++) {
+                    cursors.add(new MemoryCursor(source, i << CHUNK_SHIFT,
+                            Math.min(source.size, (i + 1) << CHUNK_SHIFT)));
+                }
+            }
+            merge(cursors, consumer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+            intermediates.forEach(File::delete);
+        }
+    }
+
+    /**
+     * K-way merge of the cursors using a binary heap.
+     */
+    protected static void merge(List<Cursor> cursors, IntConsumer consumer) throws IOException {
+        Cursor[] heap = new Cursor[cursors.size()];
+        int size = 0;
+        for (Cursor cursor : cursors) {
+            if (cursor.next()) {
+                heap[size++] = cursor;
+            }
+        }
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(heap, size, i);
+        }
+        while (size > 0) {
+            Cursor top = heap[0];
+            consumer.accept(top.value);
+            if (!top.next()) {
+                heap[0] = heap[--size];
+            }
+            if (size > 0) {
+                siftDown(heap, size, 0);
+            }
+        }
+    }
+
+    /**
+     * Merges sorted run files into a new run file.
+     */
+    protected static File mergeRuns(List<File> runs, File directory, MemoryBudget budget) throws IOException {
+        List<Cursor> cursors = new ArrayList<>(runs.size());
+        try {
+            for (File run : runs) {
+                cursors.add(new RunCursor(run));
+            }
+            return writeRun(directory, budget, out -> merge(cursors, value -> write(out, value)));
+        } finally {
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    protected static File writeRun(File directory, MemoryBudget budget, RunWriter writer) throws IOException {
+        File run = File.createTempFile("gatling-report-", ".run", directory);
+        run.deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_SIZE))) {
+            writer.write(out);
+        } catch (UncheckedIOException e) {
+            run.delete();
+            throw e.getCause();
+        } catch (IOException e) {
+            run.delete();
+            throw e;
+        }
+        if (budget != null) {
+            budget.addSpilled(run.length());
+        }
+        return run;
+    }
+
+    protected static void write(DataOutputStream out, int value) {
+        try {
+            out.writeInt(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    protected interface RunWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    protected static void siftDown(Cursor[] heap, int size, int i) {
+        Cursor item = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1].value < heap[child].value) {
+                child++;
+            }
+            if (item.value <= heap[child].value) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = item;
+    }
+
+    /**
+     * Writes the durations in memory to a new run file, the sorted chunks are merged straight into the file. When
+     * there are {@link #MAX_FAN_IN} runs they are merged into one.
+     */
+    public void spill() {
+        spillRequested = false;
+        if (size == 0) {
+            return;
+        }
+        File directory = budget == null ? null : budget.getDirectory();
+        long[] sum = new long[1];
+        try {
+            runs.add(writeRun(directory, budget, out -> mergeChunks(value -> {
+                write(out, value);
+                sum[0] += value;
+            })));
+            if (runs.size() >= MAX_FAN_IN) {
+                File merged = mergeRuns(runs, directory, budget);
+                runs.forEach(File::delete);
+                runs.clear();
+                runs.add(merged);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to spill durations", e);
+        }
+        spilledSum += sum[0];
+        spilledCount += size;
+        release();
+    }
+
+    /**
+     * Releases the durations in memory.
+     */
+    public void release() {
+        if (budget != null && allocatedChunks > 0) {
+            budget.release((long) allocatedChunks * CHUNK_BYTES);
+            budget.unregister(this);
+        }
+        allocatedChunks = 0;
+        chunks = new IntBuffer[4];
+        size = 0;
+        sorted = true;
+    }
+
+    /**
+     * Releases the memory and deletes the run files.
+     */
+    public void delete() {
+        release();
+        runs.forEach(File::delete);
+        runs.clear();
+        spilledCount = 0;
+        spilledSum = 0;
+    }
+
+    protected IntBuffer newChunk() {
+        if (budget != null) {
+            if (spillRequested) {
+                spill();
+            }
+            if (!budget.reserve(CHUNK_BYTES)) {
+                spill();
+                if (!budget.reserve(CHUNK_BYTES)) {
+                    // other lists are holding the memory, the largest ones spill at their next chunk
+                    budget.requestSpill(this);
+                    budget.forceReserve(CHUNK_BYTES);
+                }
+            }
+            if (allocatedChunks++ == 0) {
+                budget.register(this);
+            }
+        }
+        if (offHeap) {
+            return ByteBuffer.allocateDirect(CHUNK_SIZE * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+        return IntBuffer.allocate(CHUNK_SIZE);
+    }
+
+    protected abstract static class Cursor implements Closeable {
+        int value;
+
+        abstract boolean next() throws IOException;
+
+        @Override
+        public void close() {
+        }
+    }
+
+    protected static class MemoryCursor extends Cursor {
+        final Durations durations;
+
+        final int to;
+
+        int index;
+
+        MemoryCursor(Durations durations, int from, int to) {
+            this.durations = durations;
+            this.index = from;
+            this.to = to;
+        }
+
+        @Override
+        boolean next() {
+            if (index == to) {
+                return false;
+            }
+            value = durations.get(index++);
+            return true;
+        }
+    }
+
+    protected static class RunCursor extends Cursor {
+        final DataInputStream in;
+
+        RunCursor(File run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), RUN_BUFFER_SIZE));
+        }
+
+        @Override
+        boolean next() throws IOException {
+            try {
+                value = in.readInt();
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
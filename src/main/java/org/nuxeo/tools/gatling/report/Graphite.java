@@ -24,6 +24,8 @@ import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 import org.json.simple.JSONArray;
@@ -31,9 +33,11 @@ import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
-public class Graphite {
+public class Graphite implements MetricsSource {
     private final static Logger log = Logger.getLogger(Report.class);
 
+    protected static final Downloader DEFAULT_DOWNLOADER = new Downloader();
+
     protected final ZoneId zoneId;
 
     protected final String dashboardUrl;
@@ -52,8 +56,40 @@ public class Graphite {
 
     protected final File outputDirectory;
 
+    protected final Downloader downloader;
+
+    protected final boolean series;
+
+    protected final List<MetricsChart> charts = new ArrayList<>();
+
+    // the window of the dashboard in ms
+    protected final long start, end;
+
+    // the resolution of the report timeline in ms
+    protected final int resolution;
+
+    // the dashboard and its data don't change once the window is closed
+    protected final boolean immutable;
+
     public Graphite(String graphiteUrl, String user, String password, SimulationContext stats, File outputDirectory,
             ZoneId zoneId) {
+        this(graphiteUrl, user, password, stats, outputDirectory, zoneId, DEFAULT_DOWNLOADER, false);
+    }
+
+    /**
+     * Parses the dashboard and starts downloading its images in the background, see {@link #await()}.
+     *
+     * @param series downloads the data of the graphs to plot them instead of their images
+     * @since 4.1
+     */
+    public Graphite(String graphiteUrl, String user, String password, SimulationContext stats, File outputDirectory,
+            ZoneId zoneId, Downloader downloader, boolean series) {
+        this.downloader = downloader;
+        this.series = series;
+        this.start = stats.simStat.start - WINDOW_BEFORE;
+        this.end = stats.simStat.end + WINDOW_AFTER;
+        this.resolution = stats.config.getTimelineResolution();
+        this.immutable = MetricsSource.isClosed(end);
         this.dashboardUrl = graphiteUrl;
         baseUrl = Utils.getBaseUrl(graphiteUrl);
         if (zoneId == null) {
@@ -61,14 +97,18 @@ public class Graphite {
         } else {
             this.zoneId = zoneId;
         }
-        this.from = getDateAsString(stats.simStat.start - 30000L);
-        this.until = getDateAsString(stats.simStat.end + 60000L); // add one more minute to prevent empty chart
+        this.from = getDateAsString(start);
+        this.until = getDateAsString(end); // add one more minute to prevent empty chart
         this.outputDirectory = outputDirectory;
         this.user = user;
         this.password = password;
         Utils.setBasicAuth(user, password);
         parseDashboard();
-        downloadImages();
+        if (series) {
+            downloadSeries();
+        } else {
+            downloadImages();
+        }
     }
 
     protected String getDateAsString(long start) {
@@ -79,7 +119,7 @@ public class Graphite {
     protected void downloadImages() {
         images.forEach(image -> {
             try {
-                downloadImage(image);
+                image.download = downloadImage(image);
             } catch (IOException e) {
                 log.warn("Fail to download image: " + image.title);
                 if (log.isDebugEnabled())
@@ -88,9 +128,84 @@ public class Graphite {
         });
     }
 
-    protected void downloadImage(Image image) throws IOException {
+    protected Future<File> downloadImage(Image image) throws IOException {
         File dest = image.getFile(outputDirectory);
-        Utils.download(new URL(image.url), dest);
+        return downloader.submit(new URL(image.url), dest, immutable);
+    }
+
+    protected void downloadSeries() {
+        // the server consolidates the points to the report resolution, as would the chart
+        long maxDataPoints = Math.max(1, (end - start) / resolution);
+        charts.forEach(chart -> {
+            try {
+                chart.setData(downloader.submit(new URL(
+                        chart.url + String.format("&format=json&maxDataPoints=%d", maxDataPoints)), immutable));
+            } catch (IOException e) {
+                log.warn("Fail to download series: " + chart.title);
+                if (log.isDebugEnabled())
+                    log.debug("Download error", e);
+            }
+        });
+    }
+
+    /**
+     * The charts of the dashboard with their data, empty unless the series are downloaded.
+     *
+     * @since 4.1
+     */
+    @Override
+    public List<MetricsChart> getCharts() {
+        List<MetricsChart> ret = new ArrayList<>(charts.size());
+        for (MetricsChart chart : charts) {
+            if (chart.getTraces() != null) {
+                ret.add(chart);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Parses the render API json: a list of targets with their datapoints {@code [value, timestamp in s]}.
+     */
+    protected List<MetricsChart.Trace> parseSeries(String json) throws ParseException {
+        List<MetricsChart.Trace> ret = new ArrayList<>();
+        for (Object target : (JSONArray) new JSONParser().parse(json)) {
+            JSONObject jsonTarget = (JSONObject) target;
+            MetricsChart.Trace trace = new MetricsChart.Trace(String.valueOf(jsonTarget.get("target")), resolution);
+            for (Object point : (JSONArray) jsonTarget.get("datapoints")) {
+                Object value = ((JSONArray) point).get(0);
+                Object time = ((JSONArray) point).get(1);
+                if (time != null) {
+                    trace.add(((Number) time).longValue() * 1000, value == null ? null : ((Number) value).doubleValue());
+                }
+            }
+            ret.add(trace);
+        }
+        return ret;
+    }
+
+    /**
+     * Waits for the images or the series to be downloaded, the failures are logged.
+     *
+     * @since 4.1
+     */
+    @Override
+    public void await() throws InterruptedException {
+        for (MetricsChart chart : charts) {
+            chart.getTraces();
+        }
+        for (Image image : images) {
+            if (image.download == null) {
+                continue;
+            }
+            try {
+                image.download.get();
+            } catch (ExecutionException e) {
+                log.warn("Fail to download image: " + image.title);
+                if (log.isDebugEnabled())
+                    log.debug("Download error", e.getCause());
+            }
+        }
     }
 
     protected void parseDashboard() {
@@ -107,14 +222,19 @@ public class Graphite {
         for (Object graph : graphs) {
             String title = ((JSONObject) ((JSONArray) graph).get(1)).get("title").toString();
             String graphUrl = ((String) ((JSONArray) graph).get(2));
-            images.add(new Image(baseUrl + graphUrl, title, from, until));
+            if (series) {
+                charts.add(new MetricsChart("graphite" + charts.size(), baseUrl + graphUrl
+                        + String.format("&from=%s&until=%s", from, until), title, this::parseSeries));
+            } else {
+                images.add(new Image(baseUrl + graphUrl, title, from, until));
+            }
         }
     }
 
     protected String getJsonDashboard() throws IOException {
         String url = getJsonDashboardUrl();
         log.info("Downloading: " + url);
-        return Utils.getContent(new URL(url));
+        return downloader.getContent(new URL(url), immutable);
     }
 
     protected String getJsonDashboardUrl() {
@@ -129,6 +249,8 @@ public class Graphite {
 
         String filename;
 
+        Future<File> download;
+
         public Image(String url, String title, String from, String until) {
             this.url = getUrl(url, from, until);
             this.title = title;
@@ -143,5 +265,4 @@ public class Graphite {
             return new File(outputDirectory, filename);
         }
     }
-
 }
@@ -0,0 +1,431 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A channel on a gzip file that inflates in background threads while the caller consumes the output.
+ * <p>
+ * A scanner thread looks for gzip member headers and submits an inflate task for each candidate, the inflated blocks
+ * are queued and recycled once consumed. Members of a multi-member file are inflated in parallel. A candidate found
+ * inside compressed data is discarded because only the member starting where the previous one ends is consumed.
+ *
+ * @since 4.1
+ */
+public class GzipChannel implements ReadableByteChannel {
+
+    protected static final int BLOCK_SIZE = 256 * 1024;
+
+    protected static final int INPUT_SIZE = 128 * 1024;
+
+    protected static final int SCAN_SIZE = 1024 * 1024;
+
+    protected static final int MAX_BLOCKS_PER_MEMBER = 8;
+
+    protected static final long POLL_MS = 100;
+
+    protected static final Block END_OF_MEMBER = new Block(0);
+
+    protected static final Member NO_MORE_MEMBER = new Member(null, -1);
+
+    protected final File file;
+
+    protected final FileChannel channel;
+
+    protected final ExecutorService executor;
+
+    protected final Thread scanner;
+
+    protected final BlockingQueue<Member> members;
+
+    protected final ConcurrentLinkedQueue<Block> freeBlocks = new ConcurrentLinkedQueue<>();
+
+    protected volatile boolean closed;
+
+    protected volatile IOException scanError;
+
+    protected Member member;
+
+    protected Block block;
+
+    protected int blockPosition;
+
+    protected long position;
+
+    protected boolean eof;
+
+    public GzipChannel(File file, int threads) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread ret = new Thread(r, "gzip-inflate");
+            ret.setDaemon(true);
+            return ret;
+        });
+        members = new ArrayBlockingQueue<>(2 * threads);
+        scanner = new Thread(this::scanMembers, "gzip-scan");
+        scanner.setDaemon(true);
+        scanner.start();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (eof) {
+            return -1;
+        }
+        while (block == null || blockPosition == block.length) {
+            if (!nextBlock()) {
+                eof = true;
+                return -1;
+            }
+        }
+        int ret = Math.min(dst.remaining(), block.length - blockPosition);
+        dst.put(block.data, blockPosition, ret);
+        blockPosition += ret;
+        return ret;
+    }
+
+    protected boolean nextBlock() throws IOException {
+        if (block != null) {
+            freeBlocks.offer(block);
+            block = null;
+        }
+        try {
+            while (true) {
+                if (member == null) {
+                    member = members.take();
+                    if (member == NO_MORE_MEMBER) {
+                        member = null;
+                        if (scanError != null) {
+                            throw scanError;
+                        }
+                        if (position == 0) {
+                            throw new ZipException("Not in GZIP format: " + file.getAbsolutePath());
+                        }
+                        return false;
+                    }
+                    if (member.start < position) {
+                        // a candidate inside the previous member
+                        member.cancel(freeBlocks);
+                        member = null;
+                        continue;
+                    }
+                    if (member.start > position) {
+                        // trailing data that is not a gzip member
+                        member.cancel(freeBlocks);
+                        member = null;
+                        return false;
+                    }
+                }
+                Block next = member.output.take();
+                if (next == END_OF_MEMBER) {
+                    if (member.error != null) {
+                        if (member.invalidHeader && position > 0) {
+                            // trailing data that is not a gzip member, as GZIPInputStream does
+                            return false;
+                        }
+                        throw new IOException("Invalid gzip member at offset " + member.start + " of "
+                                + file.getAbsolutePath(), member.error);
+                    }
+                    position = member.end;
+                    member = null;
+                    continue;
+                }
+                block = next;
+                blockPosition = 0;
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Looks for the gzip member header signature and submits an inflate task for each candidate.
+     */
+    protected void scanMembers() {
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(SCAN_SIZE);
+            byte[] bytes = buffer.array();
+            long size = channel.size();
+            long offset = 0;
+            while (offset < size && !closed) {
+                ((Buffer) buffer).clear();
+                int read = 0;
+                while (buffer.hasRemaining() && offset + read < size) {
+                    int n = channel.read(buffer, offset + read);
+                    if (n < 0) {
+                        break;
+                    }
+                    read += n;
+                }
+                for (int i = 0; i + 3 < read; i++) {
+                    if ((bytes[i] & 0xff) == 0x1f && (bytes[i + 1] & 0xff) == 0x8b && bytes[i + 2] == 8
+                            && (bytes[i + 3] & 0xe0) == 0) {
+                        submit(new Member(this, offset + i));
+                    }
+                }
+                if (offset + read >= size || read <= 3) {
+                    break;
+                }
+                offset += read - 3;
+            }
+        } catch (IOException e) {
+            scanError = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                while (!closed && !members.offer(NO_MORE_MEMBER, POLL_MS, TimeUnit.MILLISECONDS)) {
+                    // wait for the consumer
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    protected void submit(Member candidate) throws InterruptedException {
+        try {
+            candidate.future = executor.submit(candidate::inflate);
+        } catch (RejectedExecutionException e) {
+            // closed
+            return;
+        }
+        while (!members.offer(candidate, POLL_MS, TimeUnit.MILLISECONDS)) {
+            if (closed) {
+                candidate.cancel(freeBlocks);
+                return;
+            }
+        }
+    }
+
+    protected Block newBlock() {
+        Block ret = freeBlocks.poll();
+        if (ret == null) {
+            return new Block(BLOCK_SIZE);
+        }
+        ret.length = 0;
+        return ret;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (member != null) {
+            member.cancel(freeBlocks);
+        }
+        members.forEach(m -> m.cancel(freeBlocks));
+        executor.shutdown();
+        channel.close();
+    }
+
+    protected static class Block {
+        final byte[] data;
+
+        int length;
+
+        Block(int size) {
+            data = new byte[size];
+        }
+    }
+
+    /**
+     * A gzip member candidate inflated by a background task.
+     */
+    protected static class Member {
+        final GzipChannel source;
+
+        final long start;
+
+        final BlockingQueue<Block> output = new ArrayBlockingQueue<>(MAX_BLOCKS_PER_MEMBER);
+
+        volatile boolean cancelled;
+
+        volatile Exception error;
+
+        volatile boolean invalidHeader;
+
+        volatile long end;
+
+        Future<?> future;
+
+        Member(GzipChannel source, long start) {
+            this.source = source;
+            this.start = start;
+        }
+
+        void cancel(ConcurrentLinkedQueue<Block> freeBlocks) {
+            cancelled = true;
+            if (future != null) {
+                // don't interrupt, it would close the shared file channel
+                future.cancel(false);
+            }
+            Block block;
+            while ((block = output.poll()) != null) {
+                if (block != END_OF_MEMBER) {
+                    freeBlocks.offer(block);
+                }
+            }
+        }
+
+        void inflate() {
+            Inflater inflater = new Inflater(true);
+            try {
+                long offset = readHeader();
+                ByteBuffer input = ByteBuffer.allocate(INPUT_SIZE);
+                CRC32 crc = new CRC32();
+                long size = 0;
+                Block block = source.newBlock();
+                while (!inflater.finished()) {
+                    if (cancelled) {
+                        return;
+                    }
+                    if (inflater.needsInput()) {
+                        ((Buffer) input).clear();
+                        int read = source.channel.read(input, offset);
+                        if (read <= 0) {
+                            throw new EOFException("Unexpected end of ZLIB input stream");
+                        }
+                        offset += read;
+                        inflater.setInput(input.array(), 0, read);
+                    }
+                    int n = inflater.inflate(block.data, block.length, block.data.length - block.length);
+                    if (n == 0 && inflater.needsDictionary()) {
+                        throw new ZipException("Unexpected dictionary");
+                    }
+                    crc.update(block.data, block.length, n);
+                    block.length += n;
+                    size += n;
+                    if (block.length == block.data.length) {
+                        if (!emit(block)) {
+                            return;
+                        }
+                        block = source.newBlock();
+                    }
+                }
+                if (block.length > 0 && !emit(block)) {
+                    return;
+                }
+                long trailer = offset - inflater.getRemaining();
+                ByteBuffer buffer = ByteBuffer.allocate(8);
+                while (buffer.hasRemaining()) {
+                    if (source.channel.read(buffer, trailer + buffer.position()) <= 0) {
+                        throw new EOFException("Unexpected end of gzip trailer");
+                    }
+                }
+                if (readInt(buffer.array(), 0) != crc.getValue()
+                        || readInt(buffer.array(), 4) != (size & 0xffffffffL)) {
+                    throw new ZipException("Corrupt GZIP trailer");
+                }
+                end = trailer + 8;
+            } catch (IOException | DataFormatException | RuntimeException e) {
+                error = e;
+            } finally {
+                inflater.end();
+                emit(END_OF_MEMBER);
+            }
+        }
+
+        /**
+         * Returns the offset of the deflate data.
+         */
+        long readHeader() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(INPUT_SIZE);
+            int read = source.channel.read(buffer, start);
+            byte[] header = buffer.array();
+            try {
+                if (read < 10) {
+                    throw new EOFException("Truncated gzip header");
+                }
+                int flags = header[3] & 0xff;
+                int pos = 10;
+                if ((flags & 4) != 0) {
+                    // FEXTRA
+                    pos += 2 + ((header[pos] & 0xff) | ((header[pos + 1] & 0xff) << 8));
+                }
+                if ((flags & 8) != 0) {
+                    // FNAME
+                    while (header[pos++] != 0) {
+                        // skip
+                    }
+                }
+                if ((flags & 16) != 0) {
+                    // FCOMMENT
+                    while (header[pos++] != 0) {
+                        // skip
+                    }
+                }
+                if ((flags & 2) != 0) {
+                    // FHCRC
+                    pos += 2;
+                }
+                if (pos > read) {
+                    throw new EOFException("Truncated gzip header");
+                }
+                return start + pos;
+            } catch (IOException | ArrayIndexOutOfBoundsException e) {
+                invalidHeader = true;
+                throw new ZipException("Invalid gzip header: " + e.getMessage());
+            }
+        }
+
+        boolean emit(Block block) {
+            try {
+                while (!cancelled) {
+                    if (output.offer(block, POLL_MS, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        static long readInt(byte[] bytes, int offset) {
+            return (bytes[offset] & 0xffL) | ((bytes[offset + 1] & 0xffL) << 8) | ((bytes[offset + 2] & 0xffL) << 16)
+                    | ((bytes[offset + 3] & 0xffL) << 24);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Request counts per time bucket and per log-scaled latency bucket.
+ * <p>
+ * Latency buckets are log-linear: exact below 8 ms then 8 buckets per power of two, a relative precision of 12.5%. The
+ * memory depends on the run duration and on the bucket size, not on the number of requests.
+ *
+ * @since 4.1
+ */
+public class Heatmap {
+
+    protected static final int SUB_BUCKET_BITS = 3;
+
+    protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // up to Integer.MAX_VALUE ms
+    protected static final int LATENCY_BUCKETS = latencyBucket(Integer.MAX_VALUE) + 1;
+
+    // columns of the heatmap to plot, consecutive time buckets are summed above
+    protected static final int MAX_COLUMNS = 1000;
+
+    protected final long start;
+
+    protected final int resolution;
+
+    protected int length;
+
+    // allocated for the time buckets having requests
+    protected int[][] rows = new int[0][];
+
+    public Heatmap(long start, int resolution) {
+        if (resolution <= 0) {
+            throw new IllegalArgumentException("Invalid heatmap resolution: " + resolution);
+        }
+        this.start = start;
+        this.resolution = resolution;
+    }
+
+    public int size() {
+        return length;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public int getResolution() {
+        return resolution;
+    }
+
+    /**
+     * Records a request completed at the given time.
+     */
+    public void record(long end, long duration) {
+        long index = (end - start) / resolution;
+        if (index >= Timeline.MAX_BUCKETS) {
+            // a bad timestamp, like in the timelines
+            return;
+        }
+        // requests before the start are accounted in the first bucket
+        getRow((int) Math.max(0, index))[latencyBucket(duration)]++;
+    }
+
+    /**
+     * Adds the counts of another heatmap with the same start and resolution.
+     */
+    public void merge(Heatmap other) {
+        for (int i = 0; i < other.length; i++) {
+            int[] row = other.rows[i];
+            if (row == null) {
+                continue;
+            }
+            int[] target = getRow(i);
+            for (int j = 0; j < LATENCY_BUCKETS; j++) {
+                target[j] += row[j];
+            }
+        }
+    }
+
+    protected int[] getRow(int bucket) {
+        if (bucket >= length) {
+            if (bucket >= rows.length) {
+                rows = Arrays.copyOf(rows, Math.max(bucket + 1, Math.max(64, rows.length * 2)));
+            }
+            length = bucket + 1;
+        }
+        int[] ret = rows[bucket];
+        if (ret == null) {
+            ret = new int[LATENCY_BUCKETS];
+            rows[bucket] = ret;
+        }
+        return ret;
+    }
+
+    protected static int latencyBucket(long duration) {
+        long value = Math.max(0, Math.min(Integer.MAX_VALUE, duration));
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + sub;
+    }
+
+    protected static long lowerBound(int latencyBucket) {
+        if (latencyBucket < SUB_BUCKETS) {
+            return latencyBucket;
+        }
+        int exponent = (latencyBucket - SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (latencyBucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << exponent;
+    }
+
+    protected static long upperBound(int latencyBucket) {
+        return lowerBound(latencyBucket + 1) - 1;
+    }
+
+    /**
+     * Computes the percentiles of the requests completed in each sliding window of time buckets ending at each
+     * bucket, as upper bounds of the latency buckets, null for a window without request.
+     *
+     * @param percentiles the percentiles in ]0, 100]
+     * @param window the number of time buckets of the window
+     */
+    public Long[][] getRollingPercentiles(double[] percentiles, int window) {
+        Long[][] ret = new Long[percentiles.length][length];
+        long[] counts = new long[LATENCY_BUCKETS];
+        long total = 0;
+        for (int i = 0; i < length; i++) {
+            total += add(counts, rows[i], 1);
+            if (i >= window) {
+                total -= add(counts, rows[i - window], -1);
+            }
+            if (total == 0) {
+                continue;
+            }
+            // single scan of the latency buckets for all the percentiles
+            int p = 0;
+            long cumulated = 0;
+            for (int j = 0; j < LATENCY_BUCKETS && p < percentiles.length; j++) {
+                cumulated += counts[j];
+                while (p < percentiles.length && cumulated >= Math.ceil(percentiles[p] / 100.0 * total)) {
+                    ret[p++][i] = upperBound(j);
+                }
+            }
+        }
+        return ret;
+    }
+
+    protected static long add(long[] counts, int[] row, int sign) {
+        if (row == null) {
+            return 0;
+        }
+        long ret = 0;
+        for (int j = 0; j < LATENCY_BUCKETS; j++) {
+            counts[j] += sign * row[j];
+            ret += row[j];
+        }
+        return ret;
+    }
+
+    // accessors for the templates, consecutive time buckets are summed to plot at most MAX_COLUMNS columns
+
+    protected int getStep() {
+        return Math.max(1, (length + MAX_COLUMNS - 1) / MAX_COLUMNS);
+    }
+
+    /**
+     * The start time of each column in ms since the epoch.
+     */
+    public List<Long> getTimes() {
+        int step = getStep();
+        int size = (length + step - 1) / step;
+        return new JsonList<Long>() {
+            @Override
+            public Long get(int index) {
+                return start + (long) index * step * resolution;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * The middle of each latency bucket having requests, in ms.
+     */
+    public List<Double> getLatencies() {
+        int[] range = getLatencyRange();
+        return new JsonList<Double>() {
+            @Override
+            public Double get(int index) {
+                int j = range[0] + index;
+                // the 0 ms bucket is plotted at 0.5 to fit on a log axis
+                return j == 0 ? 0.5 : (lowerBound(j) + upperBound(j)) / 2.0;
+            }
+
+            @Override
+            public int size() {
+                return Math.max(0, range[1] - range[0] + 1);
+            }
+        };
+    }
+
+    /**
+     * The request counts, one row per latency bucket and one column per time column.
+     */
+    public List<List<Integer>> getCounts() {
+        int[] range = getLatencyRange();
+        int step = getStep();
+        int columns = (length + step - 1) / step;
+        return new JsonList<List<Integer>>() {
+            @Override
+            public List<Integer> get(int index) {
+                int j = range[0] + index;
+                return new JsonList<Integer>() {
+                    @Override
+                    public Integer get(int column) {
+                        int count = 0;
+                        for (int k = column * step; k < Math.min(length, (column + 1) * step); k++) {
+                            if (rows[k] != null) {
+                                count += rows[k][j];
+                            }
+                        }
+                        return count;
+                    }
+
+                    @Override
+                    public int size() {
+                        return columns;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return Math.max(0, range[1] - range[0] + 1);
+            }
+        };
+    }
+
+    protected int[] getLatencyRange() {
+        int min = LATENCY_BUCKETS, max = -1;
+        for (int i = 0; i < length; i++) {
+            int[] row = rows[i];
+            if (row == null) {
+                continue;
+            }
+            for (int j = 0; j < LATENCY_BUCKETS; j++) {
+                if (row[j] > 0) {
+                    min = Math.min(min, j);
+                    max = Math.max(max, j);
+                }
+            }
+        }
+        return new int[] { min, max };
+    }
+
+    public static class Series {
+        protected final String name;
+
+        protected final List<Long> values;
+
+        public Series(String name, Long[] values) {
+            this.name = name;
+            this.values = JsonList.of(Arrays.asList(values));
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<Long> getValues() {
+            return values;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.util.Arrays;
+
+/**
+ * A log-linear histogram of positive values in the spirit of HdrHistogram. Values are recorded with a relative
+ * precision given by a number of significant decimal digits, the memory used depends on this precision and on the
+ * max value, not on the number of recorded values.
+ * <p>
+ * Count, min, max, mean and standard deviation are exact, percentiles are exact up to the precision.
+ *
+ * @since 4.1
+ */
+public class Histogram {
+
+    protected final int significantDigits;
+
+    protected final int subBucketHalfCountMagnitude;
+
+    protected final int subBucketHalfCount;
+
+    protected final long subBucketMask;
+
+    protected long[] counts;
+
+    protected long count;
+
+    protected long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+
+    protected double sum;
+
+    // running mean and sum of squared deviations, Welford's algorithm avoids the cancellation of a sum of squares
+    protected double mean, m2;
+
+    public Histogram(int significantDigits) {
+        if (significantDigits < 1 || significantDigits > 5) {
+            throw new IllegalArgumentException("Significant digits must be between 1 and 5: " + significantDigits);
+        }
+        this.significantDigits = significantDigits;
+        long largestValueWithSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+        int subBucketCountMagnitude = (int) Math.ceil(Math.log(largestValueWithSingleUnitResolution) / Math.log(2));
+        subBucketHalfCountMagnitude = Math.max(subBucketCountMagnitude, 1) - 1;
+        subBucketHalfCount = 1 << subBucketHalfCountMagnitude;
+        subBucketMask = (2L * subBucketHalfCount) - 1;
+        counts = new long[2 * subBucketHalfCount];
+    }
+
+    public int getSignificantDigits() {
+        return significantDigits;
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int index = countsIndex(value);
+        if (index >= counts.length) {
+            counts = Arrays.copyOf(counts, index + subBucketHalfCount);
+        }
+        counts[index]++;
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+    }
+
+    public void add(Histogram other) {
+        if (other.subBucketHalfCount != subBucketHalfCount) {
+            throw new IllegalArgumentException("Can not add histograms with different precisions");
+        }
+        if (other.count == 0) {
+            return;
+        }
+        if (other.counts.length > counts.length) {
+            counts = Arrays.copyOf(counts, other.counts.length);
+        }
+        for (int i = 0; i < other.counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        // Chan's parallel combination of the squared deviations
+        long total = count + other.count;
+        double delta = other.mean - mean;
+        m2 += other.m2 + delta * delta * count * other.count / total;
+        mean += delta * other.count / total;
+        count = total;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sum += other.sum;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return count == 0 ? 0 : max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * The sample standard deviation, like commons math {@code StandardDeviation}.
+     */
+    public double getStdDeviation() {
+        if (count < 2) {
+            return 0;
+        }
+        return Math.sqrt(Math.max(0, m2 / (count - 1)));
+    }
+
+    /**
+     * Returns the value at the percentile, the highest value equivalent to the recorded values at this rank.
+     */
+    public long getValueAtPercentile(double percentile) {
+        return getValuesAtPercentiles(new double[] { percentile })[0];
+    }
+
+    /**
+     * Returns the values at the percentiles sorted in ascending order with a single pass on the counts.
+     */
+    public long[] getValuesAtPercentiles(double[] percentiles) {
+        long[] ret = new long[percentiles.length];
+        if (count == 0) {
+            return ret;
+        }
+        int i = 0;
+        long total = 0;
+        for (int p = 0; p < percentiles.length; p++) {
+            long rank = Math.max(1, (long) Math.ceil(Math.min(100.0, percentiles[p]) / 100.0 * count));
+            while (total < rank && i < counts.length) {
+                total += counts[i++];
+            }
+            if (total >= rank) {
+                ret[p] = Math.max(getMin(), Math.min(getMax(), highestEquivalentValue(i - 1)));
+            } else {
+                ret[p] = getMax();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the number of recorded values lower or equal to the value, up to the precision.
+     */
+    public long getCountBelowOrEqual(long value) {
+        if (value >= getMax()) {
+            return count;
+        }
+        int last = Math.min(counts.length - 1, countsIndex(Math.max(0, value)));
+        long ret = 0;
+        for (int i = 0; i <= last; i++) {
+            ret += counts[i];
+        }
+        return ret;
+    }
+
+    protected int countsIndex(long value) {
+        int bucketIndex = 63 - subBucketHalfCountMagnitude - Long.numberOfLeadingZeros(value | subBucketMask);
+        int subBucketIndex = (int) (value >>> bucketIndex);
+        return ((bucketIndex + 1) << subBucketHalfCountMagnitude) + (subBucketIndex - subBucketHalfCount);
+    }
+
+    protected long lowestEquivalentValue(int index) {
+        int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+        int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+        if (bucketIndex < 0) {
+            subBucketIndex -= subBucketHalfCount;
+            bucketIndex = 0;
+        }
+        return ((long) subBucketIndex) << bucketIndex;
+    }
+
+    protected long highestEquivalentValue(int index) {
+        int bucketIndex = Math.max(0, (index >> subBucketHalfCountMagnitude) - 1);
+        return lowestEquivalentValue(index) + (1L << bucketIndex) - 1;
+    }
+}
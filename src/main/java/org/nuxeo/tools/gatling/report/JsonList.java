@@ -0,0 +1,62 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * A list of values plotted in a report. The report writes it as a javascript array directly into its output, element
+ * by element, instead of building its {@code toString}, which gives the same text.
+ *
+ * @since 4.1
+ */
+public abstract class JsonList<T> extends AbstractList<T> {
+
+    public static <T> JsonList<T> of(List<T> list) {
+        return new JsonList<T>() {
+            @Override
+            public T get(int index) {
+                return list.get(index);
+            }
+
+            @Override
+            public int size() {
+                return list.size();
+            }
+        };
+    }
+
+    public void writeTo(Writer writer) throws IOException {
+        writer.write('[');
+        int size = size();
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                writer.write(", ");
+            }
+            T value = get(i);
+            if (value instanceof JsonList) {
+                ((JsonList<?>) value).writeTo(writer);
+            } else {
+                writer.write(String.valueOf(value));
+            }
+        }
+        writer.write(']');
+    }
+}
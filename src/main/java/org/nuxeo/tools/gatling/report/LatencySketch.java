@@ -0,0 +1,86 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A mergeable summary of durations: the number of durations per log-linear latency bucket of the {@link Heatmap}, the
+ * percentiles are bucket upper bounds with a relative error below 12.5%.
+ *
+ * @since 4.1
+ */
+public class LatencySketch {
+
+    protected final long[] counts = new long[Heatmap.LATENCY_BUCKETS];
+
+    protected long count;
+
+    public static LatencySketch of(Concurrency concurrency) {
+        LatencySketch ret = new LatencySketch();
+        long[] latencies = concurrency.getLatencies();
+        for (int i = 0; i < latencies.length; i++) {
+            ret.add(i, latencies[i]);
+        }
+        return ret;
+    }
+
+    public void add(int bucket, long count) {
+        counts[bucket] += count;
+        this.count += count;
+    }
+
+    public void merge(LatencySketch other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the percentile, 0 without durations.
+     */
+    public long getPercentile(double percentile) {
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long cumulated = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulated += counts[i];
+            if (cumulated >= rank) {
+                return Heatmap.upperBound(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The non empty buckets as {bucket, count} pairs.
+     */
+    public List<long[]> getBuckets() {
+        List<long[]> ret = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                ret.add(new long[] { i, counts[i] });
+            }
+        }
+        return ret;
+    }
+}
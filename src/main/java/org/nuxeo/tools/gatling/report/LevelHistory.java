@@ -0,0 +1,122 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.util.Arrays;
+
+/**
+ * The levels of active users keyed by the time of the user events, to find the level at the start of a request.
+ * <p>
+ * The events are kept for the longest request duration seen and at least for the default Gatling request timeout,
+ * older events are pruned, a request starting before the kept events gets the level of the last pruned one.
+ *
+ * @since 4.1
+ */
+public class LevelHistory {
+
+    // default Gatling request timeout
+    protected static final long MIN_RETENTION = 60_000;
+
+    protected static final int INITIAL_CAPACITY = 1024;
+
+    protected long[] times = new long[INITIAL_CAPACITY];
+
+    protected int[] levels = new int[INITIAL_CAPACITY];
+
+    protected int size;
+
+    // level before the first kept event
+    protected int initial;
+
+    protected long maxDuration;
+
+    protected final boolean bounded;
+
+    /**
+     * @param bounded prunes the events older than the retention, a chunk keeps all its events until it is merged
+     */
+    public LevelHistory(boolean bounded) {
+        this.bounded = bounded;
+    }
+
+    public void add(long time, int level) {
+        if (size == times.length) {
+            if (bounded) {
+                prune(time - getRetention());
+            }
+            if (size > times.length / 2) {
+                times = Arrays.copyOf(times, times.length * 2);
+                levels = Arrays.copyOf(levels, levels.length * 2);
+            }
+        }
+        times[size] = time;
+        levels[size] = level;
+        size++;
+    }
+
+    /**
+     * Keeps the events for at least the duration of a request.
+     */
+    public void retain(long duration) {
+        maxDuration = Math.max(maxDuration, duration);
+    }
+
+    public long getRetention() {
+        return Math.max(MIN_RETENTION, maxDuration);
+    }
+
+    /**
+     * Returns the level at the given time, the level of the last event at or before it.
+     */
+    public int getLevelAt(long time) {
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] <= time) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high < 0 ? initial : levels[high];
+    }
+
+    /**
+     * Appends the events of a following chunk, its levels are relative to the level at its start.
+     */
+    public void append(LevelHistory other, int shift) {
+        retain(other.maxDuration);
+        for (int i = 0; i < other.size; i++) {
+            add(other.times[i], other.levels[i] + shift);
+        }
+    }
+
+    protected void prune(long before) {
+        int count = 0;
+        while (count < size && times[count] < before) {
+            count++;
+        }
+        if (count == 0) {
+            return;
+        }
+        initial = levels[count - 1];
+        System.arraycopy(times, count, times, 0, size - count);
+        System.arraycopy(levels, count, levels, 0, size - count);
+        size -= count;
+    }
+
+}
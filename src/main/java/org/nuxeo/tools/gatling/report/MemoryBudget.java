@@ -0,0 +1,128 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The memory that stored durations can use, shared by all the parsings. Durations that don't fit are spilled to sorted
+ * run files in a temporary directory.
+ *
+ * @since 4.1
+ */
+public class MemoryBudget {
+
+    protected final long limit;
+
+    protected final File directory;
+
+    protected final AtomicLong used = new AtomicLong();
+
+    protected final AtomicLong spilled = new AtomicLong();
+
+    // the lists holding memory
+    protected final Set<Durations> holders = ConcurrentHashMap.newKeySet();
+
+    public MemoryBudget(long limit, File directory) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Invalid memory budget: " + limit);
+        }
+        this.limit = limit;
+        this.directory = directory;
+    }
+
+    /**
+     * Returns false if the budget is exhausted.
+     */
+    public boolean reserve(long bytes) {
+        while (true) {
+            long current = used.get();
+            if (current + bytes > limit) {
+                return false;
+            }
+            if (used.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Reserves even when the budget is exhausted, used when nothing can be spilled.
+     */
+    public void forceReserve(long bytes) {
+        used.addAndGet(bytes);
+    }
+
+    public void release(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    public void register(Durations durations) {
+        holders.add(durations);
+    }
+
+    public void unregister(Durations durations) {
+        holders.remove(durations);
+    }
+
+    /**
+     * Asks the largest lists to spill, until a quarter of the budget is freed. A list can be filled by another thread,
+     * it spills itself when allocating its next chunk.
+     */
+    public void requestSpill(Durations requester) {
+        List<Durations> lists = new ArrayList<>(holders);
+        lists.sort((a, b) -> Integer.compare(b.allocatedChunks, a.allocatedChunks));
+        long freed = 0;
+        for (Durations list : lists) {
+            if (freed >= limit / 4) {
+                break;
+            }
+            if (list != requester && !list.spillRequested) {
+                list.spillRequested = true;
+                freed += (long) list.allocatedChunks * Durations.CHUNK_BYTES;
+            }
+        }
+    }
+
+    public void addSpilled(long bytes) {
+        spilled.addAndGet(bytes);
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * The number of bytes written to run files so far.
+     */
+    public long getSpilled() {
+        return spilled.get();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+}
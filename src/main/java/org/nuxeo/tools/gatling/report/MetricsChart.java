@@ -0,0 +1,157 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.json.simple.parser.ParseException;
+
+/**
+ * A chart of a {@link MetricsSource}: the traces parsed from the response of a query downloaded in the background.
+ *
+ * @since 4.1
+ */
+public class MetricsChart {
+    private final static Logger log = Logger.getLogger(MetricsChart.class);
+
+    protected final String id;
+
+    protected final String url;
+
+    protected final String title;
+
+    protected final Parser parser;
+
+    protected Future<String> data;
+
+    protected List<Trace> traces;
+
+    /**
+     * @param id an identifier unique in the report, used in the html and javascript names
+     */
+    public MetricsChart(String id, String url, String title, Parser parser) {
+        this.id = id;
+        this.url = url;
+        this.title = title;
+        this.parser = parser;
+    }
+
+    public MetricsChart setData(Future<String> data) {
+        this.data = data;
+        return this;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Waits for the data, null if it can not be downloaded.
+     */
+    public synchronized List<Trace> getTraces() {
+        if (traces == null && data != null) {
+            try {
+                traces = parser.parse(data.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException | ParseException | RuntimeException e) {
+                log.warn("Fail to download series: " + title);
+                if (log.isDebugEnabled())
+                    log.debug("Download error", e instanceof ExecutionException ? e.getCause() : e);
+            }
+            data = null;
+        }
+        return traces;
+    }
+
+    /**
+     * Parses the response of a query.
+     */
+    public interface Parser {
+        List<Trace> parse(String response) throws ParseException;
+    }
+
+    /**
+     * The points of a series, averaged per bucket of the report resolution.
+     */
+    public static class Trace {
+        protected final String name;
+
+        protected final int resolution;
+
+        protected final List<Long> times = new ArrayList<>();
+
+        protected final List<Double> values = new ArrayList<>();
+
+        protected double sum;
+
+        protected int count;
+
+        /**
+         * @param resolution the report resolution in ms
+         */
+        public Trace(String name, int resolution) {
+            this.name = name;
+            this.resolution = resolution;
+        }
+
+        /**
+         * Adds the points in time order, a null value is a gap.
+         */
+        public void add(long time, Double value) {
+            long bucket = Math.floorDiv(time, resolution) * resolution;
+            int last = times.size() - 1;
+            if (last < 0 || times.get(last) != bucket) {
+                times.add(bucket);
+                values.add(null);
+                sum = 0;
+                count = 0;
+                last++;
+            }
+            if (value != null) {
+                sum += value;
+                count++;
+                values.set(last, Math.round(sum / count * 100) / 100.0);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<Long> getTimes() {
+            return JsonList.of(times);
+        }
+
+        public List<Double> getValues() {
+            return JsonList.of(values);
+        }
+    }
+}
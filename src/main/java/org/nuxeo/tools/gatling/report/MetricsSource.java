@@ -0,0 +1,51 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.util.List;
+
+/**
+ * A server-side metrics backend queried for the window of a simulation, from {@code simStat.start} to
+ * {@code simStat.end}. The queries start in the background when the source is created, the charts are plotted below
+ * the response time charts of the report.
+ *
+ * @since 4.1
+ */
+public interface MetricsSource {
+
+    // the window starts before the simulation and ends after to prevent empty charts
+    long WINDOW_BEFORE = 30000L;
+
+    long WINDOW_AFTER = 60000L;
+
+    // the time for the metrics of a window to be written, the results are then immutable
+    long CLOSED_DELAY = 10 * 60 * 1000L;
+
+    /**
+     * The charts having data, waits for the queries.
+     */
+    List<MetricsChart> getCharts();
+
+    /**
+     * Waits for the queries, the failures are logged.
+     */
+    void await() throws InterruptedException;
+
+    static boolean isClosed(long end) {
+        return end + CLOSED_DELAY < System.currentTimeMillis();
+    }
+}
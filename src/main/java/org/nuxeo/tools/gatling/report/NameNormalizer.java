@@ -0,0 +1,90 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites dynamic request names, like URLs holding document ids, into templates so that they are aggregated as one
+ * request. The rules are applied in order on the name read from the simulation.
+ *
+ * @since 4.1
+ */
+public class NameNormalizer {
+
+    protected static final Pattern UUID = Pattern.compile(
+            "(?i)(?<![0-9a-f])[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}(?![0-9a-f])");
+
+    protected static final Pattern HEX = Pattern.compile("(?i)(?<![\\w-])(?=[a-f]*\\d)[0-9a-f]{16,}(?![\\w-])");
+
+    protected static final Pattern NUMBER = Pattern.compile("(?<![\\w.-])\\d+(?![\\w-])");
+
+    protected final List<Pattern> patterns = new ArrayList<>();
+
+    protected final List<String> replacements = new ArrayList<>();
+
+    /**
+     * Adds a rule replacing the matches of the regex, the replacement can refer to the groups like {@code $1}.
+     */
+    public NameNormalizer addRule(String regex, String replacement) {
+        patterns.add(Pattern.compile(regex));
+        replacements.add(replacement);
+        return this;
+    }
+
+    /**
+     * Parses a rule written as {@code REGEX=REPLACEMENT}, split on the last equal sign.
+     */
+    public NameNormalizer addRule(String rule) {
+        int index = rule.lastIndexOf('=');
+        if (index <= 0) {
+            throw new IllegalArgumentException("Invalid name rule, expecting REGEX=REPLACEMENT: " + rule);
+        }
+        return addRule(rule.substring(0, index), rule.substring(index + 1));
+    }
+
+    /**
+     * Adds the rules collapsing the UUID, long hexadecimal and numeric tokens.
+     */
+    public NameNormalizer collapseIds() {
+        patterns.add(UUID);
+        replacements.add("{uuid}");
+        patterns.add(HEX);
+        replacements.add("{hex}");
+        patterns.add(NUMBER);
+        replacements.add("{n}");
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return patterns.isEmpty();
+    }
+
+    public String normalize(String name) {
+        String ret = name;
+        for (int i = 0; i < patterns.size(); i++) {
+            Matcher matcher = patterns.get(i).matcher(ret);
+            if (matcher.find()) {
+                ret = matcher.replaceAll(replacements.get(i));
+            }
+        }
+        return ret;
+    }
+}
@@ -16,11 +16,14 @@
  */
 package org.nuxeo.tools.gatling.report;
 
+import java.io.File;
 import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import com.beust.jcommander.Parameter;
+import com.beust.jcommander.converters.IParameterSplitter;
 import com.beust.jcommander.internal.Lists;
 
 public class Options {
@@ -38,6 +41,13 @@ public class Options {
     @Parameter(names = { "--yaml", "-y" }, description = "Create a YAML report instead of an HTML report.")
     public boolean yaml = false;
 
+    @Parameter(names = { "--gzip", "-z" }, description = "Compress the report while writing it, ex: index.html.gz.")
+    public boolean gzip = false;
+
+    @Parameter(names = {
+            "--lazy" }, description = "Write the charts of each request in a data file loaded when the request is opened in the report.")
+    public boolean lazy = false;
+
     @Parameter(names = { "--force", "-f" }, description = "Override an existing report.")
     public boolean force = false;
 
@@ -61,21 +71,273 @@ public class Options {
     @Parameter(names = { "--password", "-p" }, description = "Graphite basic authentication password.")
     public String password;
 
+    @Parameter(names = {
+            "--graphite-series" }, description = "Plot the Graphite graphs data instead of including their images.")
+    public boolean graphiteSeries = false;
+
+    @Parameter(names = {
+            "--graphite-threads" }, description = "Number of Graphite images downloaded at the same time.")
+    public int graphiteThreads = Downloader.DEFAULT_THREADS;
+
+    @Parameter(names = {
+            "--graphite-timeout" }, description = "Graphite connect and read timeout in seconds.")
+    public int graphiteTimeout = Downloader.DEFAULT_TIMEOUT / 1000;
+
+    @Parameter(names = {
+            "--graphite-retries" }, description = "Number of retries of a failed Graphite download.")
+    public int graphiteRetries = Downloader.DEFAULT_RETRIES;
+
+    @Parameter(names = {
+            "--graphite-cache" }, description = "Cache the Graphite downloads in this directory.")
+    public String graphiteCache;
+
+    @Parameter(names = {
+            "--graphite-cache-ttl" }, description = "Time to live in seconds of the cached Graphite downloads of a window not yet closed.")
+    public long graphiteCacheTtl = DownloadCache.DEFAULT_TTL / 1000;
+
+    @Parameter(names = {
+            "--prometheus" }, description = "Plot the result of Prometheus range queries, ex: http://prometheus:9090")
+    public String prometheusUrl;
+
+    @Parameter(names = {
+            "--prometheus-query" }, description = "A PromQL query to plot, can be repeated.", splitter = NoSplitter.class)
+    public List<String> prometheusQueries = new ArrayList<>();
+
+    @Parameter(names = {
+            "--history" }, description = "Append the summary of the simulations to this history file, once per run.")
+    public String history;
+
+    @Parameter(names = {
+            "--history-trend" }, description = "Create a trend report of all the runs of the history file.")
+    public boolean historyTrend = false;
+
     @Parameter(names = { "--apdex-threshold",
             "-T" }, description = "Apdex thresold, the response time in second above which the request switch from satisfying"
                     + " to tolerable.")
     public Float apdexT = 1.5f;
 
+    @Parameter(names = {
+            "--parse-threads" }, description = "Number of threads used to parse a large uncompressed simulation file.")
+    public int parseThreads = 1;
+
+    @Parameter(names = {
+            "--parse-workers" }, description = "Number of simulation files parsed concurrently, default to the number of processors.")
+    public int parseWorkers = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = {
+            "--parse-memory" }, description = "Heap in MB estimated for the parsed simulations, a parsing waits until enough memory is available, a file that does not fit is parsed alone, default to 80% of the max heap.")
+    public long parseMemory = Runtime.getRuntime().maxMemory() / (1024 * 1024) * 8 / 10;
+
+    @Parameter(names = {
+            "--stat-mode" }, description = "How statistics are computed: exact keeps all durations, histogram uses a constant memory per request with a precision given by --significant-digits, default to exact, to histogram with --follow.")
+    public StatConfig.Mode statMode;
+
+    @Parameter(names = {
+            "--significant-digits" }, description = "Number of significant digits of the durations in histogram mode, from 1 to 5.")
+    public int significantDigits = StatConfig.DEFAULT_SIGNIFICANT_DIGITS;
+
+    @Parameter(names = {
+            "--off-heap" }, description = "Store the durations outside of the Java heap in exact mode, reduces the heap size and the GC pauses on large simulations.")
+    public boolean offHeap = false;
+
+    @Parameter(names = {
+            "--max-memory" }, description = "Memory in MB that the exact durations can use, the durations that don't fit are spilled to disk and merged to compute exact percentiles. Unlimited by default.")
+    public long maxMemory = 0;
+
+    @Parameter(names = {
+            "--spill-directory" }, description = "Directory of the durations spilled to disk, default to the temporary directory.")
+    public String spillDirectory;
+
+    @Parameter(names = {
+            "--cache" }, description = "Cache the parsed simulation in a binary file next to the simulation file, the next reports load it instead of parsing the simulation again.")
+    public boolean cache = false;
+
+    @Parameter(names = {
+            "--cache-directory" }, description = "Directory of the cache files, implies --cache.")
+    public String cacheDirectory;
+
+    @Parameter(names = {
+            "--follow" }, description = "Follow simulation files that are still being written, the report is refreshed with the new lines every --refresh seconds until the program is stopped.")
+    public boolean follow = false;
+
+    @Parameter(names = { "--refresh" }, description = "Refresh interval in seconds of the --follow mode.")
+    public int refresh = 10;
+
+    @Parameter(names = {
+            "--percentiles" }, description = "Comma separated list of percentiles to report, ex: 50,90,95,99,99.9")
+    public String percentiles = "50,90,95,99";
+
+    @Parameter(names = {
+            "--timeline-resolution" }, description = "Resolution in ms of the throughput, errors and active users timeline.")
+    public int timelineResolution = Timeline.DEFAULT_RESOLUTION;
+
+    @Parameter(names = {
+            "--rolling-window" }, description = "Window in ms of the rolling percentiles plotted over time.")
+    public int rollingWindow = 10000;
+
+    @Parameter(names = {
+            "--usl" }, description = "Fit the Universal Scalability Law on the throughput per number of active users.")
+    public boolean usl = false;
+
+    @Parameter(names = {
+            "--window-start" }, description = "Only report the requests after this number of seconds from the start of the run.")
+    public long windowStart = 0;
+
+    @Parameter(names = {
+            "--window-duration" }, description = "Only report the requests within this number of seconds from the --window-start.")
+    public long windowDuration = 0;
+
+    @Parameter(names = {
+            "--steady-state" }, description = "Only report the requests of the steady state window, detected from the plateau of active users of each scenario.")
+    public boolean steadyState = false;
+
+    @Parameter(names = {
+            "--include-request" }, description = "Only report the requests whose name matches this regex.")
+    public String includeRequest;
+
+    @Parameter(names = {
+            "--exclude-request" }, description = "Don't report the requests whose name matches this regex.")
+    public String excludeRequest;
+
+    @Parameter(names = {
+            "--include-scenario" }, description = "Only report the requests of the scenarios matching this regex.")
+    public String includeScenario;
+
+    @Parameter(names = {
+            "--exclude-scenario" }, description = "Don't report the requests of the scenarios matching this regex.")
+    public String excludeScenario;
+
+    @Parameter(names = { "--status" }, description = "Only report the requests with this status: OK or KO.")
+    public String status;
+
+    @Parameter(names = {
+            "--from" }, description = "Only report the requests started after this time, in ms since the epoch or as yyyy-MM-dd HH:mm:ss.")
+    public String from;
+
+    @Parameter(names = {
+            "--to" }, description = "Only report the requests ended before this time, in ms since the epoch or as yyyy-MM-dd HH:mm:ss.")
+    public String to;
+
+    @Parameter(names = {
+            "--normalize-ids" }, description = "Collapse the UUID, hexadecimal and numeric tokens of the request names.")
+    public boolean normalizeIds = false;
+
+    @Parameter(names = {
+            "--name-rule" }, description = "Rewrite the request names with a REGEX=REPLACEMENT rule, can be repeated.", splitter = NoSplitter.class)
+    public List<String> nameRules = new ArrayList<>();
+
+    @Parameter(names = {
+            "--max-requests" }, description = "Report the most frequent requests up to this number, the others are aggregated as _other, default to 0 for no limit.")
+    public int maxRequests = StatConfig.DEFAULT_MAX_REQUESTS;
+
     @Parameter(names = { "--help", "-h" }, description = "Display this message.", help = true)
     public boolean help;
 
     @Parameter(names = { "--timezone" }, description = "Graphite time zone if different from Gatling, ex: Europe/Paris")
     protected String timeZoneString;
 
+    public StatConfig getStatConfig() {
+        StatConfig ret = new StatConfig().setMode(getStatMode())
+                                         .setSignificantDigits(significantDigits)
+                                         .setOffHeap(offHeap)
+                                         .setPercentiles(percentiles)
+                                         .setTimelineResolution(timelineResolution)
+                                         .setRollingWindow(rollingWindow)
+                                         .setUsl(usl)
+                                         .setWindow(windowStart * 1000, windowDuration * 1000)
+                                         .setDetectWindow(steadyState)
+                                         .setFilter(getFilter())
+                                         .setNameNormalizer(getNameNormalizer())
+                                         .setMaxRequests(maxRequests);
+        if (maxMemory > 0) {
+            ret.setMaxMemory(maxMemory * 1024 * 1024, spillDirectory == null ? null : new File(spillDirectory));
+        }
+        return ret;
+    }
+
+    /**
+     * In follow mode the statistics are computed at each refresh, the histograms avoid sorting all the durations again.
+     *
+     * @since 4.1
+     */
+    public StatConfig.Mode getStatMode() {
+        if (statMode != null) {
+            return statMode;
+        }
+        return follow ? StatConfig.Mode.histogram : StatConfig.Mode.exact;
+    }
+
+    /**
+     * @since 4.1
+     */
+    public RequestFilter getFilter() {
+        RequestFilter ret = new RequestFilter().setIncludeRequest(includeRequest)
+                                               .setExcludeRequest(excludeRequest)
+                                               .setIncludeScenario(includeScenario)
+                                               .setExcludeScenario(excludeScenario);
+        if (status != null) {
+            switch (status.toUpperCase()) {
+            case "OK":
+                ret.setSuccess(true);
+                break;
+            case "KO":
+                ret.setSuccess(false);
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid status: " + status + ", expecting OK or KO");
+            }
+        }
+        if (from != null || to != null) {
+            ret.setTimeRange(from == null ? Long.MIN_VALUE : RequestFilter.parseTime(from),
+                    to == null ? Long.MAX_VALUE : RequestFilter.parseTime(to));
+        }
+        return ret;
+    }
+
+    /**
+     * @since 4.1
+     */
+    public NameNormalizer getNameNormalizer() {
+        NameNormalizer ret = new NameNormalizer();
+        nameRules.forEach(ret::addRule);
+        if (normalizeIds) {
+            ret.collapseIds();
+        }
+        return ret;
+    }
+
+    /**
+     * @since 4.1
+     */
+    public SimulationCache getCache() {
+        if (cacheDirectory != null) {
+            return new SimulationCache(new File(cacheDirectory));
+        }
+        return cache ? new SimulationCache(null) : null;
+    }
+
+    public Downloader getDownloader() {
+        return new Downloader().setThreads(graphiteThreads)
+                               .setTimeouts(graphiteTimeout * 1000, graphiteTimeout * 1000)
+                               .setRetries(graphiteRetries, Downloader.DEFAULT_BACKOFF)
+                               .setCache(graphiteCache == null ? null
+                                       : new DownloadCache(new File(graphiteCache), graphiteCacheTtl * 1000));
+    }
+
     public ZoneId getZoneId() {
         if (timeZoneString == null) {
             return null;
         }
         return ZoneId.of(timeZoneString);
     }
+
+    /**
+     * Keeps the commas of a regex.
+     */
+    public static class NoSplitter implements IParameterSplitter {
+        @Override
+        public List<String> split(String value) {
+            return Collections.singletonList(value);
+        }
+    }
 }
@@ -33,6 +33,18 @@ public class ParserFactory {
     protected static SimulationParser getVersionSpecificParser(File file, Float apdexT) throws IOException {
         List<String> header = getHeaderLine(file);
         // System.out.println(header.size() + " " + header);
+        return getParser(file, apdexT, header);
+    }
+
+    /**
+     * Returns the parser for an already read header line.
+     *
+     * @since 4.1
+     */
+    public static SimulationParser getParser(File file, Float apdexT, List<String> header) {
+        if (header == null) {
+            throw new IllegalArgumentException("Invalid simulation file: " + file.getAbsolutePath());
+        }
         if (header.size() == 6) {
             String version = header.get(5);
             if (version.startsWith("3.2")) {
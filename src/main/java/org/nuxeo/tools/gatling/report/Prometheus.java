@@ -0,0 +1,152 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Runs Prometheus range queries for the window of a simulation, concurrently on the downloader pool.
+ *
+ * @since 4.1
+ */
+public class Prometheus implements MetricsSource {
+    private final static Logger log = Logger.getLogger(Prometheus.class);
+
+    // the maximum number of points of a range query
+    protected static final int MAX_POINTS = 11000;
+
+    protected final String baseUrl;
+
+    protected final Downloader downloader;
+
+    protected final List<MetricsChart> charts = new ArrayList<>();
+
+    // the window in ms
+    protected final long start, end;
+
+    // the resolution of the report timeline in ms
+    protected final int resolution;
+
+    protected final boolean immutable;
+
+    /**
+     * @param prometheusUrl the Prometheus server, ex: http://prometheus:9090
+     * @param queries the PromQL queries, one chart each
+     */
+    public Prometheus(String prometheusUrl, List<String> queries, SimulationContext stats, Downloader downloader) {
+        this.baseUrl = prometheusUrl.replaceAll("/+$", "");
+        this.downloader = downloader;
+        this.start = stats.simStat.start - WINDOW_BEFORE;
+        this.end = stats.simStat.end + WINDOW_AFTER;
+        this.resolution = stats.config.getTimelineResolution();
+        this.immutable = MetricsSource.isClosed(end);
+        queries.forEach(this::query);
+    }
+
+    protected void query(String query) {
+        MetricsChart chart = new MetricsChart("prometheus" + charts.size(), getQueryUrl(query), query,
+                this::parseSeries);
+        charts.add(chart);
+        try {
+            chart.setData(downloader.submit(new URL(chart.getUrl()), immutable));
+        } catch (IOException e) {
+            log.warn("Fail to query: " + query);
+            if (log.isDebugEnabled())
+                log.debug("Query error", e);
+        }
+    }
+
+    protected String getQueryUrl(String query) {
+        // the step is the report resolution unless the window has too many points
+        long step = Math.max(resolution, (end - start + MAX_POINTS - 1) / MAX_POINTS);
+        try {
+            return String.format(Locale.ENGLISH, "%s/api/v1/query_range?query=%s&start=%.3f&end=%.3f&step=%.3f",
+                    baseUrl, URLEncoder.encode(query, "UTF-8"), start / 1000.0, end / 1000.0, step / 1000.0);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Parses a matrix result: a list of series with their labels and values {@code [timestamp in s, "value"]}.
+     */
+    protected List<MetricsChart.Trace> parseSeries(String json) throws ParseException {
+        JSONObject response = (JSONObject) new JSONParser().parse(json);
+        if (!"success".equals(response.get("status"))) {
+            throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN, response.get("error"));
+        }
+        List<MetricsChart.Trace> ret = new ArrayList<>();
+        for (Object result : (JSONArray) ((JSONObject) response.get("data")).get("result")) {
+            JSONObject series = (JSONObject) result;
+            MetricsChart.Trace trace = new MetricsChart.Trace(getName((JSONObject) series.get("metric")),
+                    resolution);
+            for (Object point : (JSONArray) series.get("values")) {
+                long time = Math.round(((Number) ((JSONArray) point).get(0)).doubleValue() * 1000);
+                double value = Double.parseDouble((String) ((JSONArray) point).get(1));
+                trace.add(time, Double.isNaN(value) || Double.isInfinite(value) ? null : value);
+            }
+            ret.add(trace);
+        }
+        return ret;
+    }
+
+    protected static String getName(JSONObject metric) {
+        Map<String, String> labels = new TreeMap<>();
+        ((Map<?, ?>) metric).forEach((key, value) -> labels.put(String.valueOf(key), String.valueOf(value)));
+        String name = labels.remove("__name__");
+        StringBuilder ret = new StringBuilder(name == null ? "" : name);
+        if (!labels.isEmpty()) {
+            ret.append('{');
+            labels.forEach((key, value) -> ret.append(ret.charAt(ret.length() - 1) == '{' ? "" : ", ")
+                                              .append(key)
+                                              .append('=')
+                                              .append(value));
+            ret.append('}');
+        }
+        return ret.toString();
+    }
+
+    @Override
+    public List<MetricsChart> getCharts() {
+        List<MetricsChart> ret = new ArrayList<>(charts.size());
+        for (MetricsChart chart : charts) {
+            if (chart.getTraces() != null) {
+                ret.add(chart);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public void await() {
+        charts.forEach(MetricsChart::getTraces);
+    }
+}
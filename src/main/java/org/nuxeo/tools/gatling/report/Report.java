@@ -16,23 +16,36 @@
  */
 package org.nuxeo.tools.gatling.report;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.io.FileUtils;
 
 import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.DefaultMustacheVisitor;
 import com.github.mustachejava.Mustache;
+import com.github.mustachejava.MustacheException;
 import com.github.mustachejava.MustacheFactory;
+import com.github.mustachejava.MustacheVisitor;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.codes.ValueCode;
 
 public class Report {
     protected static final String YAML = "yaml/";
@@ -47,16 +60,33 @@ public class Report {
 
     protected static final String DIFF_TEMPLATE = "diff.mustache";
 
+    protected static final String LAZY_SIMULATION_TEMPLATE = "simulation-lazy.mustache";
+
+    protected static final String REQUEST_TEMPLATE = "request.mustache";
+
+    protected static final String DATA_DIRECTORY = "data";
+
     protected static final String DEFAULT_SCRIPT = "plotly-latest.min.js";
 
     protected static final String DEFAULT_CDN_SCRIPT = "https://cdn.plot.ly/plotly-latest.min.js";
 
+    protected static final String GZ_EXTENSION = ".gz";
+
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
     protected final List<SimulationContext> stats;
 
     protected File outputDirectory;
 
     protected Writer writer;
 
+    // the writer opened by the report, closed once created
+    protected boolean ownWriter;
+
+    protected boolean gzip;
+
+    protected boolean lazy;
+
     protected final List<String> scripts = new ArrayList<>();
 
     protected boolean includeJs = false;
@@ -67,6 +97,16 @@ public class Report {
 
     protected Graphite graphite;
 
+    protected Downloader downloader = Graphite.DEFAULT_DOWNLOADER;
+
+    protected boolean graphiteSeries;
+
+    protected List<SummaryStore.Run> history;
+
+    protected String prometheusUrl;
+
+    protected List<String> prometheusQueries;
+
     protected ZoneId zoneId;
 
     protected boolean yaml = false;
@@ -100,10 +140,19 @@ public class Report {
     }
 
     public String create() throws IOException {
-        int nbSimulation = stats.size();
+        int nbSimulation = history == null ? stats.size() : Integer.MAX_VALUE;
         if (graphiteUrl != null) {
-            stats.forEach(stats -> stats.simStat.graphite = new Graphite(graphiteUrl, user, password, stats,
-                    outputDirectory, zoneId));
+            // the images may already be downloading since the end of the parsing
+            stats.stream()
+                 .filter(stats -> stats.simStat.graphite == null)
+                 .forEach(stats -> stats.simStat.graphite = new Graphite(graphiteUrl, user, password, stats,
+                         outputDirectory, zoneId, downloader, graphiteSeries));
+        }
+        if (prometheusUrl != null) {
+            stats.stream()
+                 .filter(stats -> stats.simStat.metrics.stream().noneMatch(Prometheus.class::isInstance))
+                 .forEach(stats -> stats.simStat.metrics.add(
+                         new Prometheus(prometheusUrl, prometheusQueries, stats, downloader)));
         }
         switch (nbSimulation) {
         case 1:
@@ -115,16 +164,50 @@ public class Report {
         default:
             createTrendReport();
         }
+        awaitMetrics();
+        if (ownWriter) {
+            writer.close();
+            writer = null;
+            ownWriter = false;
+        }
         return getReportPath().getAbsolutePath();
     }
 
     public void createSimulationReport() throws IOException {
         Mustache mustache = getMustache();
-        mustache.execute(getWriter(), stats.get(0).setScripts(getScripts())).flush();
+        SimulationContext context = stats.get(0).setScripts(getScripts());
+        if (isLazy()) {
+            writeRequestData(context);
+            Object[] scopes = { context, Collections.singletonMap("dataDirectory", DATA_DIRECTORY) };
+            mustache.execute(getWriter(), scopes).flush();
+            return;
+        }
+        mustache.execute(getWriter(), context).flush();
+    }
+
+    /**
+     * Writes the data of each request in its own script, loaded by the report when the request is opened.
+     */
+    protected void writeRequestData(SimulationContext context) throws IOException {
+        File directory = new File(outputDirectory, DATA_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create directory: " + directory.getAbsolutePath());
+        }
+        Mustache mustache = new StreamingMustacheFactory().compile(HTML + REQUEST_TEMPLATE);
+        for (RequestStat request : context.getRequests()) {
+            // not compressed, a browser does not load a gzipped script from a file
+            try (Writer writer = newWriter(new File(directory, "request-" + request.indice + ".js"), false)) {
+                mustache.execute(writer, request);
+            }
+        }
+    }
+
+    protected boolean isLazy() {
+        return lazy && template == null && !yaml && stats.size() == 1;
     }
 
     protected Mustache getMustache() throws FileNotFoundException {
-        MustacheFactory mf = new DefaultMustacheFactory();
+        MustacheFactory mf = new StreamingMustacheFactory();
         Mustache mustache;
         if (template == null) {
             mustache = mf.compile(getDefaultTemplate());
@@ -136,7 +219,9 @@ public class Report {
 
     public void createTrendReport() throws IOException {
         Mustache mustache = getMustache();
-        if (map != null && map.size() == stats.size()) {
+        if (history != null) {
+            mustache.execute(getWriter(), TrendContext.of(history).setScripts(getScripts())).flush();
+        } else if (map != null && map.size() == stats.size()) {
             HashMap<String, Object> scopes = new HashMap<>();
             scopes.put("trend", new TrendContext(stats).setScripts(getScripts()));
             int i = 0;
@@ -167,19 +252,48 @@ public class Report {
 
     public Writer getWriter() throws IOException {
         if (writer == null) {
-            File index = getReportPath();
-            writer = new FileWriter(index);
+            writer = newWriter(getReportPath(), gzip);
+            ownWriter = true;
         }
         return writer;
     }
 
+    protected static Writer newWriter(File file, boolean gzip) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if (gzip) {
+            out = new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+        return new BufferedWriter(new OutputStreamWriter(out, Charset.defaultCharset()), BUFFER_SIZE);
+    }
+
     public Report setWriter(Writer writer) {
         this.writer = writer;
         return this;
     }
 
     public File getReportPath() {
-        return new File(outputDirectory, filename);
+        return new File(outputDirectory, gzip ? filename + GZ_EXTENSION : filename);
+    }
+
+    /**
+     * Writes the charts of each request in a data file loaded when the request is opened, only for the default
+     * simulation report.
+     *
+     * @since 4.1
+     */
+    public Report lazy(boolean lazy) {
+        this.lazy = lazy;
+        return this;
+    }
+
+    /**
+     * Compresses the report while it is written, the file name gets a {@code .gz} extension.
+     *
+     * @since 4.1
+     */
+    public Report gzip(boolean gzip) {
+        this.gzip = gzip;
+        return this;
     }
 
     public List<String> getScripts() {
@@ -203,11 +317,11 @@ public class Report {
     }
 
     public String getDefaultTemplate() {
-        int nbSimulation = stats.size();
+        int nbSimulation = history == null ? stats.size() : Integer.MAX_VALUE;
         String prefix = yaml ? YAML : HTML;
         switch (nbSimulation) {
         case 1:
-            return prefix + SIMULATION_TEMPLATE;
+            return prefix + (isLazy() ? LAZY_SIMULATION_TEMPLATE : SIMULATION_TEMPLATE);
         case 2:
             return prefix + DIFF_TEMPLATE;
         default:
@@ -223,6 +337,64 @@ public class Report {
         return this;
     }
 
+    /**
+     * Plots the data of the Graphite graphs instead of including their images.
+     *
+     * @since 4.1
+     */
+    public Report graphiteSeries(boolean graphiteSeries) {
+        this.graphiteSeries = graphiteSeries;
+        return this;
+    }
+
+    /**
+     * @since 4.1
+     */
+    public Report setDownloader(Downloader downloader) {
+        this.downloader = downloader;
+        return this;
+    }
+
+    /**
+     * Creates a trend report of the runs of a {@link SummaryStore} instead of the simulations.
+     *
+     * @since 4.1
+     */
+    public Report setHistory(List<SummaryStore.Run> runs) {
+        if (runs != null && runs.isEmpty()) {
+            throw new IllegalArgumentException("No run in history");
+        }
+        this.history = runs;
+        return this;
+    }
+
+    /**
+     * Plots the result of Prometheus range queries.
+     *
+     * @since 4.1
+     */
+    public Report includePrometheus(String prometheusUrl, List<String> queries) {
+        this.prometheusUrl = prometheusUrl;
+        this.prometheusQueries = queries;
+        return this;
+    }
+
+    /**
+     * The report only links the image files, the downloads and queries are awaited once it is rendered.
+     */
+    protected void awaitMetrics() throws IOException {
+        for (SimulationContext context : stats) {
+            for (MetricsSource source : context.simStat.getMetricsSources()) {
+                try {
+                    source.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while downloading metrics", e);
+                }
+            }
+        }
+    }
+
     public Report yamlReport(boolean yaml) {
         this.yaml = yaml;
         return this;
@@ -239,4 +411,80 @@ public class Report {
         }
         return this;
     }
+
+    /**
+     * Writes the {@link JsonList} values directly into the report instead of converting them to a String.
+     *
+     * @since 4.1
+     */
+    protected static class StreamingMustacheFactory extends DefaultMustacheFactory {
+        @Override
+        public MustacheVisitor createMustacheVisitor() {
+            return new DefaultMustacheVisitor(this) {
+                @Override
+                public void value(TemplateContext tc, String variable, boolean encoded) {
+                    list.add(new StreamingValueCode(tc, df, variable, encoded));
+                }
+            };
+        }
+    }
+
+    protected static class StreamingValueCode extends ValueCode {
+        protected final boolean escaped;
+
+        public StreamingValueCode(TemplateContext tc, DefaultMustacheFactory df, String variable, boolean encoded) {
+            super(tc, df, variable, encoded);
+            this.escaped = encoded;
+        }
+
+        @Override
+        public Writer execute(Writer writer, List<Object> scopes) {
+            try {
+                Object object = get(scopes);
+                if (object instanceof JsonList) {
+                    ((JsonList<?>) object).writeTo(escaped ? new EscapingWriter(writer, df) : writer);
+                } else if (object instanceof Function) {
+                    handleFunction(writer, (Function) object, scopes);
+                } else if (object instanceof Callable) {
+                    return handleCallable(writer, (Callable) object, scopes);
+                } else if (object != null) {
+                    execute(writer, oh.stringify(object));
+                }
+                return appendText(run(writer, scopes));
+            } catch (Exception e) {
+                throw new MustacheException("Failed to get value for " + name, e, tc);
+            }
+        }
+    }
+
+    protected static class EscapingWriter extends Writer {
+        protected final Writer writer;
+
+        protected final DefaultMustacheFactory df;
+
+        public EscapingWriter(Writer writer, DefaultMustacheFactory df) {
+            this.writer = writer;
+            this.df = df;
+        }
+
+        @Override
+        public void write(String str) throws IOException {
+            df.encode(str, writer);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            df.encode(new String(cbuf, off, len), writer);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override
+        public void close() {
+            // the report writer is closed by the report
+        }
+    }
 }
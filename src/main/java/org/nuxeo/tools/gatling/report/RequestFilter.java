@@ -0,0 +1,201 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the requests to aggregate by name, scenario, status and time range. The parser checks the status and the
+ * time range before reading the names, the regex decisions are cached per interned name.
+ *
+ * @since 4.1
+ */
+public class RequestFilter {
+
+    // the names can be generated, the decisions are not cached beyond this size
+    protected static final int MAX_CACHED = 64 * 1024;
+
+    protected Pattern includeRequest, excludeRequest, includeScenario, excludeScenario;
+
+    // null for both statuses
+    protected Boolean success;
+
+    protected long from = Long.MIN_VALUE, to = Long.MAX_VALUE;
+
+    protected final Map<String, Boolean> requests = new ConcurrentHashMap<>();
+
+    protected final Map<String, Boolean> scenarios = new ConcurrentHashMap<>();
+
+    public RequestFilter setIncludeRequest(String regex) {
+        includeRequest = compile(regex);
+        requests.clear();
+        return this;
+    }
+
+    public RequestFilter setExcludeRequest(String regex) {
+        excludeRequest = compile(regex);
+        requests.clear();
+        return this;
+    }
+
+    public RequestFilter setIncludeScenario(String regex) {
+        includeScenario = compile(regex);
+        scenarios.clear();
+        return this;
+    }
+
+    public RequestFilter setExcludeScenario(String regex) {
+        excludeScenario = compile(regex);
+        scenarios.clear();
+        return this;
+    }
+
+    /**
+     * Keeps only the successful requests when true, only the failed ones when false, both when null.
+     */
+    public RequestFilter setSuccess(Boolean success) {
+        this.success = success;
+        return this;
+    }
+
+    /**
+     * Keeps the requests started and ended within this range in ms since the epoch.
+     */
+    public RequestFilter setTimeRange(long from, long to) {
+        if (from > to) {
+            throw new IllegalArgumentException("Invalid time range: " + from + " > " + to);
+        }
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    protected static Pattern compile(String regex) {
+        return regex == null ? null : Pattern.compile(regex);
+    }
+
+    /**
+     * Parses a time in ms since the epoch or a local date time like {@code 2015-11-22 20:01:00}.
+     */
+    public static long parseTime(String time) {
+        if (time.chars().allMatch(Character::isDigit)) {
+            return Long.parseLong(time);
+        }
+        try {
+            return LocalDateTime.parse(time.trim().replace(' ', 'T'))
+                                .atZone(ZoneId.systemDefault())
+                                .toInstant()
+                                .toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid time: " + time, e);
+        }
+    }
+
+    /**
+     * True when the scenario of a request is needed to accept it.
+     */
+    public boolean hasScenarioFilter() {
+        return includeScenario != null || excludeScenario != null;
+    }
+
+    public boolean isEmpty() {
+        return includeRequest == null && excludeRequest == null && includeScenario == null
+                && excludeScenario == null && success == null && from == Long.MIN_VALUE && to == Long.MAX_VALUE;
+    }
+
+    /**
+     * The checks that don't need the names.
+     */
+    public boolean accept(long start, long end, boolean success) {
+        return (this.success == null || this.success == success) && start >= from && end <= to;
+    }
+
+    public boolean acceptRequest(String name) {
+        if (includeRequest == null && excludeRequest == null) {
+            return true;
+        }
+        return decide(requests, name, includeRequest, excludeRequest);
+    }
+
+    /**
+     * A null scenario, not yet resolved, is accepted.
+     */
+    public boolean acceptScenario(String scenario) {
+        if (scenario == null || (includeScenario == null && excludeScenario == null)) {
+            return true;
+        }
+        return decide(scenarios, scenario, includeScenario, excludeScenario);
+    }
+
+    public boolean accept(String scenario, String name, long start, long end, boolean success) {
+        return accept(start, end, success) && acceptRequest(name) && acceptScenario(scenario);
+    }
+
+    protected static boolean decide(Map<String, Boolean> decisions, String value, Pattern include, Pattern exclude) {
+        Boolean ret = decisions.get(value);
+        if (ret == null) {
+            ret = matches(value, include, exclude);
+            if (decisions.size() < MAX_CACHED) {
+                decisions.put(value, ret);
+            }
+        }
+        return ret;
+    }
+
+    protected static boolean matches(String value, Pattern include, Pattern exclude) {
+        return (include == null || include.matcher(value).find()) && (exclude == null || !exclude.matcher(value)
+                                                                                                 .find());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder ret = new StringBuilder();
+        append(ret, "request", includeRequest, excludeRequest);
+        append(ret, "scenario", includeScenario, excludeScenario);
+        if (success != null) {
+            ret.append(ret.length() > 0 ? ", " : "").append(success ? "OK only" : "KO only");
+        }
+        if (from != Long.MIN_VALUE || to != Long.MAX_VALUE) {
+            ret.append(ret.length() > 0 ? ", " : "").append("time range ");
+            ret.append(from == Long.MIN_VALUE ? "" : formatTime(from)).append(" - ");
+            ret.append(to == Long.MAX_VALUE ? "" : formatTime(to));
+        }
+        return ret.toString();
+    }
+
+    protected static String formatTime(long time) {
+        return DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+                                .withZone(ZoneId.systemDefault())
+                                .format(Instant.ofEpochMilli(time));
+    }
+
+    protected static void append(StringBuilder ret, String name, Pattern include, Pattern exclude) {
+        if (include != null) {
+            ret.append(ret.length() > 0 ? ", " : "").append(name).append(" ~ ").append(include.pattern());
+        }
+        if (exclude != null) {
+            ret.append(ret.length() > 0 ? ", " : "").append(name).append(" !~ ").append(exclude.pattern());
+        }
+    }
+}
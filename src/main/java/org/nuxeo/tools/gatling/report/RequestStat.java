@@ -20,16 +20,31 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.function.LongToDoubleFunction;
 
-import org.apache.commons.math3.stat.StatUtils;
-import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
 
 public class RequestStat {
+    /**
+     * @deprecated since 4.1 the plotted points are a bounded sample, see {@link #MAX_SAMPLE}
+     */
+    @Deprecated
     public static final long MAX_BOXPOINT = 50000;
 
+    /**
+     * The maximum number of durations plotted per request.
+     *
+     * @since 4.1
+     */
+    public static final int MAX_SAMPLE = 1000;
+
     protected static final AtomicInteger statCounter = new AtomicInteger();
 
     protected String simulation;
@@ -50,15 +65,46 @@ public class RequestStat {
 
     protected long min, max, stddev, p50, p90, p95, p99;
 
+    // values of the configured percentiles
+    protected long[] percentileValues;
+
     protected double rps, avg;
 
     protected double duration;
 
-    protected final List<Double> durations;
+    // sorted once the stat is computed
+    protected Durations durations;
+
+    protected Histogram histogram;
+
+    // values at each percentile to plot when the durations are spilled to disk
+    protected long[] quantiles;
+
+    // durations evenly spaced in the merged durations of the parts and their exact quartiles, the parts are never
+    // merged in memory
+    protected long[] sample;
+
+    protected double[] quartiles;
+
+    // requests aggregated by this stat without duplicating their samples
+    protected List<RequestStat> parts;
+
+    protected final StatConfig config;
 
     protected Graphite graphite;
 
-    protected final Apdex apdex;
+    // the metrics sources other than the Graphite dashboard
+    protected final List<MetricsSource> metrics = new ArrayList<>();
+
+    protected Apdex apdex;
+
+    // completed requests per bucket, for the global stat it also holds the active users
+    protected Timeline timeline;
+
+    // durations per level of active users at the request start
+    protected Concurrency concurrency = new Concurrency();
+
+    protected Concurrency.Curve scalability;
 
     protected int maxUsers;
 
@@ -67,19 +113,38 @@ public class RequestStat {
     }
 
     public RequestStat(String simulation, String scenario, String request, long start, Float apdexT) {
+        this(simulation, scenario, request, start, apdexT, StatConfig.DEFAULT);
+    }
+
+    public RequestStat(String simulation, String scenario, String request, long start, Float apdexT,
+            StatConfig config) {
         this.simulation = simulation;
         this.scenario = scenario;
         this.request = request;
         requestId = Utils.getIdentifier(request);
         this.start = start;
-        durations = new ArrayList<>();
+        this.config = config;
+        if (config.isHistogram()) {
+            durations = null;
+            histogram = new Histogram(config.getSignificantDigits());
+        } else {
+            durations = new Durations(config.isOffHeap(), config.getMemoryBudget());
+            histogram = null;
+        }
+        percentileValues = new long[config.getPercentiles().length];
         indice = statCounter.incrementAndGet();
         apdex = new Apdex(apdexT);
+        timeline = Timeline.ofRequests(start, config.getTimelineResolution());
     }
 
     public static String header() {
+        return header(StatConfig.DEFAULT);
+    }
+
+    public static String header(StatConfig config) {
         return "simulation\tscenario\tmaxUsers\trequest\tstart\tstartDate\tduration\tend\tcount\tsuccessCount\t"
-                + "errorCount\tmin\tp50\tp90\tp95\tp99\tmax\tavg\tstddev\trps\tapdex\trating";
+                + "errorCount\tmin\t" + String.join("\t", config.getPercentileNames())
+                + "\tmax\tavg\tstddev\trps\tapdex\trating";
     }
 
     public void add(long start, long end, boolean success) {
@@ -93,8 +158,62 @@ public class RequestStat {
             errorCount += 1;
         }
         long duration = end - start;
-        durations.add((double) duration);
+        if (histogram != null) {
+            histogram.record(duration);
+        } else {
+            durations.add(duration);
+        }
         apdex.addMs(duration);
+        timeline.addRequest(end, success);
+    }
+
+    /**
+     * Merges the samples of a stat that follows this one.
+     *
+     * @since 4.1
+     */
+    public void merge(RequestStat other) {
+        count += other.count;
+        errorCount += other.errorCount;
+        start = Math.min(start, other.start);
+        end = Math.max(end, other.end);
+        if (histogram != null) {
+            histogram.add(other.histogram);
+        } else {
+            durations.addAll(other.durations);
+        }
+        apdex.merge(other.apdex);
+        timeline.merge(other.timeline);
+        concurrency.merge(other.concurrency);
+    }
+
+    /**
+     * Aggregates requests recorded separately, their samples are merged when computing the statistics instead of
+     * being duplicated while parsing. The requests must be computed before this stat.
+     *
+     * @since 4.1
+     */
+    public void aggregate(Collection<RequestStat> requests) {
+        parts = new ArrayList<>(requests);
+        count = 0;
+        errorCount = 0;
+        apdex = new Apdex(apdex.threshold);
+        if (histogram != null) {
+            histogram = new Histogram(config.getSignificantDigits());
+        }
+        for (RequestStat part : parts) {
+            count += part.count;
+            errorCount += part.errorCount;
+            if (start == 0) {
+                start = part.start;
+            }
+            start = Math.min(start, part.start);
+            end = Math.max(end, part.end);
+            if (histogram != null) {
+                histogram.add(part.histogram);
+            }
+            apdex.merge(part.apdex);
+        }
     }
 
     public void computeStat(int maxUsers) {
@@ -102,19 +221,11 @@ public class RequestStat {
     }
 
     public void computeStat(double duration, int maxUsers) {
-        double[] times = getDurationAsArray();
-        min = (long) StatUtils.min(times);
-        max = (long) StatUtils.max(times);
-        double sum = 0;
-        for (double d : times)
-            sum += d;
-        avg = sum / times.length;
-        p50 = (long) StatUtils.percentile(times, 50.0);
-        p90 = (long) StatUtils.percentile(times, 90.0);
-        p95 = (long) StatUtils.percentile(times, 95.0);
-        p99 = (long) StatUtils.percentile(times, 99.0);
-        StandardDeviation stdDev = new StandardDeviation();
-        stddev = (long) stdDev.evaluate(times, avg);
+        if (histogram != null) {
+            computeHistogramStat();
+        } else {
+            computeExactStat();
+        }
         this.duration = duration;
         this.maxUsers = maxUsers;
         rps = (count - errorCount) / duration;
@@ -122,6 +233,235 @@ public class RequestStat {
         successCount = count - errorCount;
     }
 
+    protected void computeHistogramStat() {
+        min = histogram.getMin();
+        max = histogram.getMax();
+        avg = histogram.getMean();
+        long[] values = histogram.getValuesAtPercentiles(StatConfig.DEFAULT_PERCENTILES);
+        p50 = values[0];
+        p90 = values[1];
+        p95 = values[2];
+        p99 = values[3];
+        percentileValues = histogram.getValuesAtPercentiles(config.getPercentiles());
+        stddev = (long) histogram.getStdDeviation();
+    }
+
+    /**
+     * Computes all the statistics with two linear passes on the sorted durations, spilled durations are read with an
+     * external merge.
+     */
+    protected void computeExactStat() {
+        if (parts != null) {
+            List<Durations> sources = new ArrayList<>(parts.size());
+            parts.forEach(part -> sources.add(part.durations));
+            durations.release();
+            computeMergedStat(sources);
+            return;
+        }
+        if (durations.isSpilled()) {
+            computeMergedStat(Collections.singletonList(durations));
+            return;
+        }
+        Durations times = durations;
+        times.sort();
+        int length = times.size();
+        double sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += times.get(i);
+        }
+        avg = sum / length;
+        // bias corrected two-pass algorithm, like commons math StandardDeviation
+        double accum = 0, accum2 = 0;
+        for (int i = 0; i < length; i++) {
+            double dev = times.get(i) - avg;
+            accum += dev * dev;
+            accum2 += dev;
+        }
+        stddev = length > 1 ? (long) Math.sqrt((accum - (accum2 * accum2 / length)) / (length - 1.0)) : 0;
+        setPercentiles(i -> times.get((int) i), length);
+    }
+
+    /**
+     * Computes the statistics with a single k-way merge of the sorted durations, spilled or of the aggregated parts,
+     * keeping only the values at the percentiles and a bounded sample.
+     */
+    protected void computeMergedStat(List<Durations> sources) {
+        long length = 0;
+        double sum = 0;
+        for (Durations source : sources) {
+            length += source.getSpilledCount() + source.size();
+            sum += source.getSpilledSum();
+            for (int i = 0; i < source.size(); i++) {
+                sum += source.get(i);
+            }
+        }
+        avg = sum / length;
+        // collect the values used by the percentiles during the merge
+        TreeSet<Long> indexes = new TreeSet<>();
+        LongToDoubleFunction recorder = i -> {
+            indexes.add(i);
+            return 0;
+        };
+        for (double p : getAllPercentiles()) {
+            percentile(recorder, length, p);
+        }
+        indexes.add(0L);
+        indexes.add(length - 1);
+        int sampleSize = (int) Math.min(length, MAX_SAMPLE);
+        if (parts != null) {
+            for (int i = 0; i < sampleSize; i++) {
+                indexes.add(getSampleIndex(i, sampleSize, length));
+            }
+        }
+        SortedStat stat = new SortedStat(avg, indexes);
+        Durations.forEachSorted(sources, stat);
+        stddev = length > 1 ? (long) Math.sqrt((stat.accum - (stat.accum2 * stat.accum2 / length)) / (length - 1.0))
+                : 0;
+        setPercentiles(stat::get, length);
+        if (parts != null) {
+            sample = new long[sampleSize];
+            for (int i = 0; i < sampleSize; i++) {
+                sample[i] = (long) stat.get(getSampleIndex(i, sampleSize, length));
+            }
+            quartiles = new double[] { percentile(stat::get, length, 25), percentile(stat::get, length, 50),
+                    percentile(stat::get, length, 75) };
+            return;
+        }
+        quantiles = new long[101];
+        for (int i = 0; i <= 100; i++) {
+            quantiles[i] = (long) percentile(stat::get, length, i);
+        }
+    }
+
+    protected static long getSampleIndex(int index, int sampleSize, long length) {
+        return sampleSize < 2 ? 0 : index * (length - 1) / (sampleSize - 1);
+    }
+
+    protected double[] getAllPercentiles() {
+        double[] percentiles = config.getPercentiles();
+        double[] ret = Arrays.copyOf(percentiles, percentiles.length + 4 + 101);
+        System.arraycopy(StatConfig.DEFAULT_PERCENTILES, 0, ret, percentiles.length, 4);
+        for (int i = 0; i <= 100; i++) {
+            ret[percentiles.length + 4 + i] = i;
+        }
+        return ret;
+    }
+
+    protected void setPercentiles(LongToDoubleFunction sorted, long length) {
+        min = length > 0 ? (long) sorted.applyAsDouble(0) : 0;
+        max = length > 0 ? (long) sorted.applyAsDouble(length - 1) : 0;
+        p50 = (long) percentile(sorted, length, 50.0);
+        p90 = (long) percentile(sorted, length, 90.0);
+        p95 = (long) percentile(sorted, length, 95.0);
+        p99 = (long) percentile(sorted, length, 99.0);
+        double[] percentiles = config.getPercentiles();
+        for (int i = 0; i < percentiles.length; i++) {
+            percentileValues[i] = (long) percentile(sorted, length, percentiles[i]);
+        }
+    }
+
+    /**
+     * The number of durations spilled to disk.
+     *
+     * @since 4.1
+     */
+    public long getSpilledCount() {
+        return durations == null ? 0 : durations.getSpilledCount();
+    }
+
+    /**
+     * Releases the durations, in memory or spilled.
+     *
+     * @since 4.1
+     */
+    public void release() {
+        if (durations != null && quantiles != null) {
+            durations.delete();
+        }
+    }
+
+    /**
+     * Returns the percentile of a sorted array using the same estimation as commons math {@code StatUtils}.
+     */
+    protected static double percentile(LongToDoubleFunction sorted, long length, double p) {
+        if (length == 0) {
+            return Double.NaN;
+        }
+        if (length == 1) {
+            return sorted.applyAsDouble(0);
+        }
+        double pos = p * (length + 1) / 100;
+        double fpos = Math.floor(pos);
+        long intPos = (long) fpos;
+        double dif = pos - fpos;
+        if (pos < 1) {
+            return sorted.applyAsDouble(0);
+        }
+        if (pos >= length) {
+            return sorted.applyAsDouble(length - 1);
+        }
+        double lower = sorted.applyAsDouble(intPos - 1);
+        double upper = sorted.applyAsDouble(intPos);
+        return lower + dif * (upper - lower);
+    }
+
+    /**
+     * The configured percentiles.
+     *
+     * @since 4.1
+     */
+    public List<Percentile> getPercentiles() {
+        List<String> names = config.getPercentileNames();
+        List<Percentile> ret = new ArrayList<>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            ret.add(new Percentile(names.get(i), percentileValues[i]));
+        }
+        return ret;
+    }
+
+    /**
+     * The Graphite dashboard and the other metrics sources of the simulation.
+     *
+     * @since 4.1
+     */
+    public List<MetricsSource> getMetricsSources() {
+        List<MetricsSource> ret = new ArrayList<>(metrics.size() + 1);
+        if (graphite != null) {
+            ret.add(graphite);
+        }
+        ret.addAll(metrics);
+        return ret;
+    }
+
+    /**
+     * @since 4.1
+     */
+    public List<MetricsChart> getMetricsCharts() {
+        List<MetricsChart> ret = new ArrayList<>();
+        getMetricsSources().forEach(source -> ret.addAll(source.getCharts()));
+        return ret;
+    }
+
+    /**
+     * @since 4.1
+     */
+    public Timeline getTimeline() {
+        return timeline;
+    }
+
+    public void setTimeline(Timeline timeline) {
+        this.timeline = timeline;
+    }
+
+    /**
+     * The statistics per level of active users, available once the simulation statistics are computed.
+     *
+     * @since 4.1
+     */
+    public Concurrency.Curve getScalability() {
+        return scalability;
+    }
+
     public void setSimulationName(String name) {
         simulation = name;
     }
@@ -138,8 +478,125 @@ public class RequestStat {
         return String.format(Locale.ENGLISH, "%.1f", avg);
     }
 
+    /**
+     * The durations to plot, sorted once the stat is computed, in histogram mode or when the durations are spilled the
+     * values at each percentile, for an aggregate the sample collected while merging its parts.
+     */
+    public List<Double> getDurations() {
+        if (sample != null) {
+            List<Double> ret = new ArrayList<>(sample.length);
+            for (long value : sample) {
+                ret.add((double) value);
+            }
+            return JsonList.of(ret);
+        }
+        if (quantiles != null) {
+            List<Double> ret = new ArrayList<>(quantiles.length);
+            for (long value : quantiles) {
+                ret.add((double) value);
+            }
+            return JsonList.of(ret);
+        }
+        if (histogram == null) {
+            return new JsonList<Double>() {
+                @Override
+                public Double get(int index) {
+                    return (double) durations.get(index);
+                }
+
+                @Override
+                public int size() {
+                    return durations.size();
+                }
+            };
+        }
+        double[] percentiles = new double[101];
+        for (int i = 0; i <= 100; i++) {
+            percentiles[i] = i;
+        }
+        List<Double> ret = new ArrayList<>(percentiles.length);
+        for (long value : histogram.getValuesAtPercentiles(percentiles)) {
+            ret.add((double) value);
+        }
+        return JsonList.of(ret);
+    }
+
+    /**
+     * At most {@link #MAX_SAMPLE} durations evenly spaced in the sorted durations, including the min and the max, so
+     * the size of a report does not depend on the number of requests. Their quartiles are the ones of the durations
+     * within a rank of {@code count / MAX_SAMPLE}.
+     *
+     * @since 4.1
+     */
+    public List<Double> getSample() {
+        List<Double> values = getDurations();
+        int size = values.size();
+        if (size <= MAX_SAMPLE) {
+            return values;
+        }
+        return new JsonList<Double>() {
+            @Override
+            public Double get(int index) {
+                return values.get((int) ((long) index * (size - 1) / (MAX_SAMPLE - 1)));
+            }
+
+            @Override
+            public int size() {
+                return MAX_SAMPLE;
+            }
+        };
+    }
+
+    /**
+     * The box plot summary of the durations, the whiskers are approximated with the percentiles in histogram mode or
+     * when the durations are spilled, and with the sample for an aggregate of more than {@link #MAX_SAMPLE} durations.
+     *
+     * @since 4.1
+     */
+    public Box getBox() {
+        List<Double> values = getDurations();
+        int size = values.size();
+        if (size == 0) {
+            return null;
+        }
+        double q1, median, q3;
+        if (quartiles != null) {
+            // the fences are searched in the sample
+            q1 = quartiles[0];
+            median = quartiles[1];
+            q3 = quartiles[2];
+        } else if (quantiles != null || histogram != null) {
+            // the values at each percentile
+            q1 = values.get(25);
+            median = values.get(50);
+            q3 = values.get(75);
+        } else {
+            q1 = percentile(i -> values.get((int) i), size, 25);
+            median = percentile(i -> values.get((int) i), size, 50);
+            q3 = percentile(i -> values.get((int) i), size, 75);
+        }
+        double iqr = q3 - q1;
+        double lowerFence = values.get(firstAtLeast(values, q1 - 1.5 * iqr));
+        double upperFence = values.get(firstAtLeast(values, Math.nextUp(q3 + 1.5 * iqr)) - 1);
+        return new Box(q1, median, q3, lowerFence, upperFence);
+    }
+
+    // binary search in sorted values
+    protected static int firstAtLeast(List<Double> values, double value) {
+        int low = 0, high = values.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values.get(mid) < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
     public String boxpoints() {
-        if (count < MAX_BOXPOINT) {
+        if (histogram == null && quantiles == null) {
             return "'all'";
         }
         return "false";
@@ -162,23 +619,104 @@ public class RequestStat {
         return formatter.format(Instant.ofEpochMilli(start));
     }
 
-    protected double[] getDurationAsArray() {
-        double[] ret = new double[durations.size()];
-        for (int i = 0; i < durations.size(); i++) {
-            ret[i] = durations.get(i);
-        }
-        return ret;
-    }
-
     public String getDuration() {
         return String.format(Locale.ENGLISH, "%.1f", duration);
     }
 
     @Override
     public String toString() {
-        return String.format(Locale.ENGLISH,
-                "%s\t%s\t%s\t%s\t%s\t%s\t%.2f\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%.2f\t%s\t%.2f\t%.2f\t%s",
-                simulation, scenario, maxUsers, request, start, startDate, duration, end, count, successCount,
-                errorCount, min, p50, p90, p95, p99, max, avg, stddev, rps, apdex.getScore(), apdex.getRating());
+        StringBuilder ret = new StringBuilder(String.format(Locale.ENGLISH,
+                "%s\t%s\t%s\t%s\t%s\t%s\t%.2f\t%s\t%s\t%s\t%s\t%s", simulation, scenario, maxUsers, request, start,
+                startDate, duration, end, count, successCount, errorCount, min));
+        for (long value : percentileValues) {
+            ret.append('\t').append(value);
+        }
+        ret.append(String.format(Locale.ENGLISH, "\t%s\t%.2f\t%s\t%.2f\t%.2f\t%s", max, avg, stddev, rps,
+                apdex.getScore(), apdex.getRating()));
+        return ret.toString();
+    }
+
+    /**
+     * Computes the standard deviation and collects the values at some indexes while reading sorted durations.
+     */
+    protected static class SortedStat implements IntConsumer {
+        protected final double avg;
+
+        protected final long[] indexes;
+
+        protected final long[] values;
+
+        protected double accum, accum2;
+
+        protected long position;
+
+        protected int next;
+
+        protected SortedStat(double avg, Collection<Long> indexes) {
+            this.avg = avg;
+            this.indexes = indexes.stream().mapToLong(Long::longValue).toArray();
+            values = new long[this.indexes.length];
+        }
+
+        @Override
+        public void accept(int value) {
+            double dev = value - avg;
+            accum += dev * dev;
+            accum2 += dev;
+            if (next < indexes.length && indexes[next] == position) {
+                values[next++] = value;
+            }
+            position++;
+        }
+
+        protected double get(long index) {
+            return values[Arrays.binarySearch(indexes, index)];
+        }
+    }
+
+    protected static class Percentile {
+        protected final String name;
+
+        protected final long value;
+
+        protected Percentile(String name, long value) {
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    /**
+     * @since 4.1
+     */
+    public static class Box {
+        protected final double q1, median, q3, lowerFence, upperFence;
+
+        public Box(double q1, double median, double q3, double lowerFence, double upperFence) {
+            this.q1 = q1;
+            this.median = median;
+            this.q3 = q3;
+            this.lowerFence = lowerFence;
+            this.upperFence = upperFence;
+        }
+
+        public double getQ1() {
+            return q1;
+        }
+
+        public double getMedian() {
+            return median;
+        }
+
+        public double getQ3() {
+            return q3;
+        }
+
+        public double getLowerFence() {
+            return lowerFence;
+        }
+
+        public double getUpperFence() {
+            return upperFence;
+        }
     }
 }
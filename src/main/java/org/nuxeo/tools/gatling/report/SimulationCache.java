@@ -0,0 +1,580 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A binary columnar cache of a parsed simulation file, so the next reports don't have to parse and decompress it
+ * again.
+ * <p>
+ * The cache is a sidecar file, or a file in a cache directory, keyed by the simulation path, size, modification time
+ * and a hash of its content. It holds a dictionary of the request and scenario names and one column per
+ * field of the request and user rows: start, end, name, scenario and type. The columns are memory mapped and replayed
+ * into a simulation context.
+ *
+ * @since 4.1
+ */
+public class SimulationCache {
+    private final static Logger log = Logger.getLogger(SimulationCache.class);
+
+    protected static final int MAGIC = 0x47524331;
+
+    // the key hashes the whole content since version 3, the scenario of each request row is resolved since version 4
+    protected static final int VERSION = 4;
+
+    protected static final String EXTENSION = ".cache";
+
+    protected static final int SEGMENT_SHIFT = 30;
+
+    protected static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    // row types
+    protected static final byte REQUEST_OK = 0;
+
+    protected static final byte REQUEST_KO = 1;
+
+    protected static final byte USER_START = 2;
+
+    protected static final byte USER_END = 3;
+
+    protected final File directory;
+
+    /**
+     * @param directory where to write the cache files, null to write them next to the simulation files
+     */
+    public SimulationCache(File directory) {
+        this.directory = directory;
+    }
+
+    public File getCacheFile(File simulation) {
+        if (directory == null) {
+            return new File(simulation.getAbsolutePath() + EXTENSION);
+        }
+        return new File(directory, simulation.getName() + "-"
+                + Integer.toHexString(simulation.getAbsolutePath().hashCode()) + EXTENSION);
+    }
+
+    /**
+     * Returns the simulation context replayed from the cache, null if there is no valid cache for this file.
+     */
+    public SimulationContext load(File simulation, Float apdexT, StatConfig config) {
+        File cacheFile = getCacheFile(simulation);
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+        long t0 = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            Key key = new Key(in.readUTF(), in.readLong(), in.readLong(), in.readLong());
+            if (!key.equals(getKey(simulation))) {
+                log.info("Outdated cache: " + cacheFile.getAbsolutePath());
+                return null;
+            }
+            String simulationName = readString(in);
+            String scenarioName = readString(in);
+            long start = in.readLong();
+            String[] names = new String[in.readInt()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = in.readUTF();
+            }
+            int[] requestScenarios = new int[names.length];
+            for (int i = 0; i < names.length; i++) {
+                requestScenarios[i] = in.readInt();
+            }
+            long rows = in.readLong();
+            long offset = align(channel.position());
+            try (Columns columns = new Columns(channel, offset, rows)) {
+                SimulationContext ret = new SimulationContext(simulation.getAbsolutePath(), apdexT, config, false);
+                ret.setSimulationName(simulationName);
+                ret.setScenarioName(scenarioName);
+                ret.setStart(start);
+                if (config.isDetectWindow()) {
+                    // the user rows are replayed a first time to detect the steady state
+                    SimulationContext users = SimulationContext.usersOnly(ret.filePath, config);
+                    users.setStart(start);
+                    replay(columns, rows, names, requestScenarios, users);
+                    long[] window = users.detectWindow();
+                    if (window != null) {
+                        ret.setWindow(window[0], window[1], true);
+                    }
+                }
+                replay(columns, rows, names, requestScenarios, ret);
+                log.info(String.format("Loaded %d rows from cache %s in %d ms", rows, cacheFile.getAbsolutePath(),
+                        System.currentTimeMillis() - t0));
+                return ret;
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Invalid cache: " + cacheFile.getAbsolutePath(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns a new dictionary to share between the writers of a simulation.
+     */
+    public Dictionary newDictionary() {
+        return new Dictionary();
+    }
+
+    public Writer newWriter(Dictionary dictionary) throws IOException {
+        return new Writer(dictionary, directory);
+    }
+
+    /**
+     * Writes the cache from the rows recorded by the writers in file order, the writers are closed. Failing to write
+     * the cache is not an error.
+     */
+    public void save(File simulation, SimulationContext context, Dictionary dictionary, List<Writer> writers) {
+        File cacheFile = getCacheFile(simulation);
+        File tmp = null;
+        try {
+            for (Writer writer : writers) {
+                writer.finish();
+            }
+            long rows = writers.stream().mapToLong(writer -> writer.rows).sum();
+            Key key = getKey(simulation);
+            List<String> names = dictionary.getNames();
+            tmp = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getAbsoluteFile().getParentFile());
+            try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(key.path);
+                out.writeLong(key.size);
+                out.writeLong(key.modified);
+                out.writeLong(key.hash);
+                writeString(out, context.simulationName);
+                writeString(out, context.scenarioName);
+                out.writeLong(context.start);
+                out.writeInt(names.size());
+                for (String name : names) {
+                    out.writeUTF(name);
+                }
+                for (String name : names) {
+                    RequestStat request = context.reqStats.get(name);
+                    out.writeInt(request == null ? -1 : dictionary.getId(request.scenario));
+                }
+                out.writeLong(rows);
+                out.flush();
+                channel.position(align(channel.position()));
+                for (int column = 0; column < Writer.COLUMNS; column++) {
+                    for (Writer writer : writers) {
+                        if (column == Writer.SCENARIO_COLUMN && !writer.unresolvedUsers.isEmpty()) {
+                            writer.copyScenarios(channel);
+                            continue;
+                        }
+                        try (FileChannel in = FileChannel.open(writer.files[column].toPath(),
+                                StandardOpenOption.READ)) {
+                            long size = in.size();
+                            long position = 0;
+                            while (position < size) {
+                                position += in.transferTo(position, size - position, channel);
+                            }
+                        }
+                    }
+                }
+            }
+            Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            log.info(String.format("Cached %d rows in %s", rows, cacheFile.getAbsolutePath()));
+        } catch (IOException | RuntimeException e) {
+            log.warn("Can not write cache: " + cacheFile.getAbsolutePath(), e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+        } finally {
+            writers.forEach(Writer::close);
+        }
+    }
+
+    protected static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    protected static String get(String[] names, int id) {
+        return id < 0 ? null : names[id];
+    }
+
+    protected static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    protected static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * The key hashes the whole file, reading it is still much faster than parsing it.
+     */
+    protected static Key getKey(File simulation) throws IOException {
+        CRC32 crc = new CRC32();
+        long size;
+        try (FileChannel channel = FileChannel.open(simulation.toPath(), StandardOpenOption.READ)) {
+            size = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                crc.update(buffer.array(), 0, buffer.position());
+                ((Buffer) buffer).clear();
+            }
+        }
+        return new Key(simulation.getAbsolutePath(), size, simulation.lastModified(), crc.getValue());
+    }
+
+    protected static class Key {
+        final String path;
+
+        final long size, modified, hash;
+
+        Key(String path, long size, long modified, long hash) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return path.equals(other.path) && size == other.size && modified == other.modified
+                    && hash == other.hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode();
+        }
+    }
+
+    /**
+     * The names of the requests and scenarios shared by the writers of a simulation.
+     */
+    public static class Dictionary {
+        protected final Map<String, Integer> ids = new ConcurrentHashMap<>();
+
+        protected final List<String> names = new ArrayList<>();
+
+        public int getId(String name) {
+            if (name == null) {
+                return -1;
+            }
+            Integer ret = ids.get(name);
+            if (ret != null) {
+                return ret;
+            }
+            synchronized (names) {
+                return ids.computeIfAbsent(name, n -> {
+                    names.add(n);
+                    return names.size() - 1;
+                });
+            }
+        }
+
+        protected List<String> getNames() {
+            synchronized (names) {
+                return new ArrayList<>(names);
+            }
+        }
+    }
+
+    protected void replay(Columns columns, long rows, String[] names, int[] requestScenarios,
+            SimulationContext ret) throws IOException {
+        RequestFilter filter = ret.config.getFilter();
+        NameNormalizer normalizer = ret.config.getNameNormalizer();
+        // the request names are normalized once
+        String[] requestNames = normalizer.isEmpty() ? names : new String[names.length];
+        for (long row = 0; row < rows; row++) {
+            byte type = columns.getType(row);
+            switch (type) {
+            case REQUEST_OK:
+            case REQUEST_KO:
+                if (ret.usersOnly) {
+                    break;
+                }
+                int name = columns.getName(row);
+                // the scenario of the row, a request name can be shared by scenarios
+                int scenarioId = columns.getScenario(row);
+                String scenario = get(names, scenarioId < 0 ? requestScenarios[name] : scenarioId);
+                if (requestNames[name] == null) {
+                    requestNames[name] = normalizer.normalize(names[name]);
+                }
+                long start = columns.getStart(row);
+                long end = columns.getEnd(row);
+                if (filter.accept(scenario, requestNames[name], start, end, type == REQUEST_OK)) {
+                    ret.addRequest(scenario, requestNames[name], start, end, type == REQUEST_OK);
+                }
+                break;
+            case USER_START:
+                ret.addUser(get(names, columns.getScenario(row)), columns.getStart(row));
+                break;
+            case USER_END:
+                ret.endUser(get(names, columns.getScenario(row)), columns.getStart(row));
+                break;
+            default:
+                throw new IOException("Invalid row type: " + type);
+            }
+        }
+    }
+
+    /**
+     * Records the rows of a simulation file, or of a chunk, into temporary column files.
+     */
+    public static class Writer implements Closeable {
+        protected static final int COLUMNS = 5;
+
+        protected static final int SCENARIO_COLUMN = 3;
+
+        protected final Dictionary dictionary;
+
+        protected final File[] files = new File[COLUMNS];
+
+        protected final DataOutputStream start, end, name, scenario, type;
+
+        protected long rows;
+
+        // users started in a previous chunk, their request rows are written with -2 - index until resolved
+        protected final Map<String, Integer> unresolvedUsers = new HashMap<>();
+
+        protected int[] resolvedScenarios;
+
+        protected Writer(Dictionary dictionary, File directory) throws IOException {
+            this.dictionary = dictionary;
+            DataOutputStream[] columns = new DataOutputStream[COLUMNS];
+            for (int i = 0; i < COLUMNS; i++) {
+                files[i] = File.createTempFile("gatling-report-", ".col", directory);
+                files[i].deleteOnExit();
+                columns[i] = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(files[i]), BUFFER_SIZE));
+            }
+            // same order as the columns in the cache file, the largest values first to keep them aligned
+            start = columns[0];
+            end = columns[1];
+            name = columns[2];
+            scenario = columns[3];
+            type = columns[4];
+        }
+
+        public void addRequest(String scenario, String name, long start, long end, boolean success) {
+            add(success ? REQUEST_OK : REQUEST_KO, dictionary.getId(scenario), name, start, end);
+        }
+
+        /**
+         * Records a request of a user started in a previous chunk, its scenario is set by {@link #resolveUsers}.
+         */
+        public void addUnresolvedRequest(String user, String name, long start, long end, boolean success) {
+            Integer index = unresolvedUsers.computeIfAbsent(user, u -> unresolvedUsers.size());
+            add(success ? REQUEST_OK : REQUEST_KO, -2 - index, name, start, end);
+        }
+
+        public void addUser(String scenario, boolean start, long time) {
+            add(start ? USER_START : USER_END, dictionary.getId(scenario), null, time, time);
+        }
+
+        /**
+         * Resolves the scenario of the users started in the previous chunks, once they are parsed.
+         */
+        public void resolveUsers(Function<String, String> userScenario) {
+            resolvedScenarios = new int[unresolvedUsers.size()];
+            unresolvedUsers.forEach((user, index) -> resolvedScenarios[index] = dictionary.getId(
+                    userScenario.apply(user)));
+        }
+
+        protected void copyScenarios(FileChannel channel) throws IOException {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(files[SCENARIO_COLUMN]), BUFFER_SIZE))) {
+                for (long row = 0; row < rows; row++) {
+                    int id = in.readInt();
+                    if (id < -1) {
+                        id = resolvedScenarios == null ? -1 : resolvedScenarios[-2 - id];
+                    }
+                    out.writeInt(id);
+                }
+            }
+            out.flush();
+        }
+
+        protected void add(byte type, int scenarioId, String name, long start, long end) {
+            try {
+                this.start.writeLong(start);
+                this.end.writeLong(end);
+                this.name.writeInt(dictionary.getId(name));
+                this.scenario.writeInt(scenarioId);
+                this.type.writeByte(type);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Can not write cache column", e);
+            }
+            rows++;
+        }
+
+        protected void finish() throws IOException {
+            start.close();
+            end.close();
+            name.close();
+            scenario.close();
+            type.close();
+        }
+
+        @Override
+        public void close() {
+            try {
+                finish();
+            } catch (IOException e) {
+                // ignore
+            }
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Memory mapped columns of the cache file, mapped in segments of 1GB as a mapping is limited to 2GB. The segments
+     * are unmapped when closed instead of waiting for the garbage collector, they must not be read after.
+     */
+    protected static class Columns implements Closeable {
+        final MappedByteBuffer[] segments;
+
+        final long start, end, name, scenario, type;
+
+        Columns(FileChannel channel, long offset, long rows) throws IOException {
+            start = offset;
+            end = start + 8 * rows;
+            name = end + 8 * rows;
+            scenario = name + 4 * rows;
+            type = scenario + 4 * rows;
+            long size = type + rows;
+            if (channel.size() < size) {
+                throw new IOException("Truncated cache");
+            }
+            int count = (int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long from = (long) i << SEGMENT_SHIFT;
+                long length = Math.min(size - from, 1L << SEGMENT_SHIFT);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, from, length);
+            }
+        }
+
+        long getStart(long row) {
+            return getLong(start + 8 * row);
+        }
+
+        long getEnd(long row) {
+            return getLong(end + 8 * row);
+        }
+
+        int getName(long row) {
+            return getInt(name + 4 * row);
+        }
+
+        int getScenario(long row) {
+            return getInt(scenario + 4 * row);
+        }
+
+        byte getType(long row) {
+            long offset = type + row;
+            return segments[(int) (offset >>> SEGMENT_SHIFT)].get((int) (offset & SEGMENT_MASK));
+        }
+
+        // the values are aligned so they never cross a segment
+        long getLong(long offset) {
+            return segments[(int) (offset >>> SEGMENT_SHIFT)].getLong((int) (offset & SEGMENT_MASK));
+        }
+
+        int getInt(long offset) {
+            return segments[(int) (offset >>> SEGMENT_SHIFT)].getInt((int) (offset & SEGMENT_MASK));
+        }
+
+        @Override
+        public void close() {
+            for (int i = 0; i < segments.length; i++) {
+                if (segments[i] != null) {
+                    unmap(segments[i]);
+                    segments[i] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases a mapping, there is no public API before Java 9 {@code Unsafe.invokeCleaner} so it is left to the
+     * garbage collector if the cleaner is not accessible.
+     */
+    protected static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                // Java 8
+                Method getCleaner = buffer.getClass().getMethod("cleaner");
+                getCleaner.setAccessible(true);
+                Object cleaner = getCleaner.invoke(buffer);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+                return;
+            }
+            invokeCleaner.invoke(field.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("Can not unmap cache segment", e);
+        }
+    }
+}
@@ -19,14 +19,26 @@ package org.nuxeo.tools.gatling.report;
 import static java.lang.Math.max;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.stream.Collectors;
 
+import org.apache.log4j.Logger;
+
 public class SimulationContext {
+    private final static Logger log = Logger.getLogger(SimulationContext.class);
+
     public static final String ALL_REQUESTS = "_all";
 
+    /**
+     * @since 4.1
+     */
+    public static final String OTHER_REQUESTS = "_other";
+
     protected final Float apdexT;
 
     protected final String filePath;
@@ -37,20 +49,72 @@ public class SimulationContext {
 
     protected final Map<String, CountMax> users = new HashMap<>();
 
+    // active users of the simulation and of each scenario, requests are added from the request stats
+    protected Timeline timeline;
+
+    protected final Map<String, Timeline> scenarioTimelines = new HashMap<>();
+
+    protected Heatmap heatmap;
+
+    // durations per level of active users and time spent at each level
+    protected final Concurrency concurrency = new Concurrency();
+
+    // active users, relative to the start of the chunk for a partial context
+    protected int level;
+
+    // user events to find the level at the start of a request
+    protected final LevelHistory history;
+
+    // requests of a chunk started before its first user event, their level is known once merged
+    protected final PendingRequests pending = new PendingRequests();
+
+    protected long firstEventTime = -1, lastEventTime = -1;
+
+    // requests outside of the window are dropped
+    protected long windowStart = Long.MIN_VALUE, windowEnd = Long.MAX_VALUE;
+
+    protected boolean windowDetected;
+
+    // only the users are aggregated, to detect the steady state window
+    protected boolean usersOnly;
+
+    protected final Map<String, String> unresolvedScenarios = new HashMap<>();
+
+    protected final boolean partial;
+
+    protected final StatConfig config;
+
     protected String simulationName;
 
     protected String scenarioName;
 
     protected List<String> scripts = new ArrayList<>();
 
+    protected Map<String, Timeline> scenarioTimelineStats = new HashMap<>();
+
     protected int maxUsers;
 
     protected long start;
 
     public SimulationContext(String filePath, Float apdexT) {
+        this(filePath, apdexT, StatConfig.DEFAULT, false);
+    }
+
+    /**
+     * A partial context aggregates a chunk of a simulation file, it is merged into the simulation context once the
+     * chunk is parsed.
+     *
+     * @since 4.1
+     */
+    public SimulationContext(String filePath, Float apdexT, StatConfig config, boolean partial) {
         this.filePath = filePath;
-        this.simStat = new RequestStat(ALL_REQUESTS, ALL_REQUESTS, ALL_REQUESTS, 0, apdexT);
+        this.simStat = new RequestStat(ALL_REQUESTS, ALL_REQUESTS, ALL_REQUESTS, 0, apdexT, config);
         this.apdexT = apdexT;
+        this.config = config;
+        this.partial = partial;
+        this.history = new LevelHistory(!partial);
+        this.timeline = new Timeline(0, config.getTimelineResolution());
+        this.heatmap = new Heatmap(0, config.getTimelineResolution());
     }
 
     public String getSimulationName() {
@@ -62,6 +126,15 @@ public class SimulationContext {
         simStat.setSimulationName(name);
     }
 
+    /**
+     * Describes how statistics have been computed.
+     *
+     * @since 4.1
+     */
+    public String getStatistics() {
+        return config.toString();
+    }
+
     public RequestStat getSimStat() {
         return simStat;
     }
@@ -72,18 +145,250 @@ public class SimulationContext {
         return ret;
     }
 
+    /**
+     * True when a request started and ended within the window.
+     *
+     * @since 4.1
+     */
+    public boolean isInWindow(long start, long end) {
+        return start >= windowStart && end <= windowEnd;
+    }
+
+    /**
+     * True when some requests are not aggregated because of the window or of the filter.
+     *
+     * @since 4.1
+     */
+    public boolean isFiltered() {
+        return getWindow() != null || !config.getFilter().isEmpty();
+    }
+
     public void addRequest(String scenario, String requestName, long start, long end, boolean success) {
-        RequestStat request = reqStats.computeIfAbsent(requestName,
-                n -> new RequestStat(simulationName, scenario, n, this.start, apdexT));
+        if (usersOnly || !isInWindow(start, end)) {
+            return;
+        }
+        RequestStat request = getRequest(scenario, requestName);
         request.add(start, end, success);
-        simStat.add(start, end, success);
+        heatmap.record(end, end - start);
+        history.retain(end - start);
+        if (partial && (firstEventTime < 0 || start < firstEventTime)) {
+            pending.add(request, start, end - start, success);
+            return;
+        }
+        int users = history.getLevelAt(start);
+        request.concurrency.record(users, end - start, success);
+        concurrency.record(users, end - start, success);
+    }
+
+    protected RequestStat getRequest(String scenario, String requestName) {
+        RequestStat ret = reqStats.get(requestName);
+        if (ret == null) {
+            if (isFull()) {
+                // the new names are aggregated together
+                return getOtherRequests(scenario);
+            }
+            ret = new RequestStat(simulationName, scenario, requestName, start, apdexT, config);
+            reqStats.put(requestName, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * The requests kept while parsing are twice the reported ones, the least frequent are aggregated at the end.
+     */
+    protected boolean isFull() {
+        int max = config.getMaxRequests();
+        return max > 0 && reqStats.size() >= 2 * max;
+    }
+
+    protected RequestStat getOtherRequests(String scenario) {
+        RequestStat ret = reqStats.get(OTHER_REQUESTS);
+        if (ret == null) {
+            ret = new RequestStat(simulationName, scenario, OTHER_REQUESTS, start, apdexT, config);
+            reqStats.put(OTHER_REQUESTS, ret);
+        } else if (ret.scenario == null) {
+            ret.setScenario(scenario);
+        }
+        return ret;
+    }
+
+    /**
+     * Aggregates the least frequent requests as {@link #OTHER_REQUESTS} to report at most the max requests.
+     */
+    protected void limitRequests() {
+        int max = config.getMaxRequests();
+        if (max <= 0 || reqStats.size() <= max) {
+            return;
+        }
+        List<RequestStat> requests = reqStats.values()
+                                             .stream()
+                                             .filter(request -> !OTHER_REQUESTS.equals(request.request))
+                                             .sorted(Comparator.comparingLong((RequestStat request) -> request.count)
+                                                               .reversed()
+                                                               .thenComparing(request -> request.request))
+                                             .collect(Collectors.toList());
+        List<RequestStat> others = requests.subList(max - 1, requests.size());
+        for (RequestStat request : others) {
+            reqStats.remove(request.request);
+            getOtherRequests(request.scenario).merge(request);
+        }
+        log.info(String.format("%s: %d requests aggregated as %s, see --max-requests", filePath, others.size(),
+                OTHER_REQUESTS));
+    }
+
+    /**
+     * Registers the user of the first request of a chunk when its scenario is not yet known.
+     *
+     * @since 4.1
+     */
+    public void addUnresolvedScenario(String requestName, String user) {
+        if (!reqStats.containsKey(requestName)) {
+            unresolvedScenarios.put(requestName, user);
+        }
+    }
+
+    /**
+     * Merges a partial context that follows the already aggregated part of the simulation.
+     *
+     * @since 4.1
+     */
+    public void merge(SimulationContext other) {
+        // the levels of the other context are relative to the level at its start
+        other.reqStats.values().forEach(stat -> stat.concurrency.shift(level));
+        other.concurrency.shift(level);
+        // the requests started in a previous chunk are leveled with the already merged events
+        for (int i = 0; i < other.pending.size; i++) {
+            int users = history.getLevelAt(other.pending.starts[i]);
+            other.pending.requests[i].concurrency.record(users, other.pending.durations[i], other.pending.successes[i]);
+            other.concurrency.record(users, other.pending.durations[i], other.pending.successes[i]);
+        }
+        history.append(other.history, level);
+        if (other.firstEventTime >= 0) {
+            if (lastEventTime >= 0 && other.firstEventTime > lastEventTime) {
+                concurrency.addTime(level, other.firstEventTime - lastEventTime);
+            }
+            lastEventTime = Math.max(lastEventTime, other.lastEventTime);
+        }
+        concurrency.merge(other.concurrency);
+        level += other.level;
+        other.reqStats.forEach((name, stat) -> {
+            RequestStat request = reqStats.get(name);
+            if (request == null && isFull()) {
+                getOtherRequests(stat.scenario).merge(stat);
+            } else if (request == null) {
+                reqStats.put(name, stat);
+            } else {
+                request.merge(stat);
+            }
+        });
+        timeline.merge(other.timeline);
+        heatmap.merge(other.heatmap);
+        other.scenarioTimelines.forEach((scenario, users) -> {
+            Timeline current = scenarioTimelines.get(scenario);
+            if (current == null) {
+                scenarioTimelines.put(scenario, users);
+            } else {
+                current.merge(users);
+            }
+        });
+        other.users.forEach((scenario, count) -> {
+            CountMax current = users.get(scenario);
+            if (current != null) {
+                current.merge(count);
+            } else if (count.started) {
+                // ending users of an unknown scenario are ignored
+                count.leading = 0;
+                users.put(scenario, count);
+            }
+        });
     }
 
     public void computeStat() {
+        long begin = System.currentTimeMillis();
         maxUsers = users.values().stream().mapToInt(CountMax::getMax).sum();
-        simStat.computeStat(maxUsers);
-        reqStats.values()
-                .forEach(request -> request.computeStat(simStat.duration, users.get(request.scenario).maximum));
+        limitRequests();
+        // the global stat merges the request samples instead of recording them twice
+        simStat.aggregate(reqStats.values());
+        double duration = (simStat.end - simStat.start) / 1000.0;
+        reqStats.values().forEach(request -> {
+            CountMax count = users.get(request.scenario);
+            request.computeStat(duration, count == null ? maxUsers : count.maximum);
+        });
+        simStat.computeStat(duration, maxUsers);
+        computeTimelines();
+        boolean usl = config.isUsl();
+        reqStats.values().forEach(request -> request.scalability = request.concurrency.getCurve(concurrency, usl));
+        simStat.scalability = concurrency.getCurve(concurrency, usl);
+        long spilled = reqStats.values().stream().mapToLong(RequestStat::getSpilledCount).sum();
+        if (spilled > 0) {
+            log.info(String.format("%s: %d MB of durations spilled to disk, merged in %d ms", filePath,
+                    spilled * Integer.BYTES / (1024 * 1024), System.currentTimeMillis() - begin));
+        }
+    }
+
+    protected void computeTimelines() {
+        Timeline all = timeline.copyUsers();
+        Map<String, Timeline> scenarios = new HashMap<>();
+        scenarioTimelines.forEach((scenario, users) -> scenarios.put(scenario, users.copyUsers()));
+        for (RequestStat request : reqStats.values()) {
+            all.addRequests(request.timeline);
+            scenarios.computeIfAbsent(request.scenario, s -> new Timeline(start, config.getTimelineResolution()))
+                     .addRequests(request.timeline);
+        }
+        simStat.setTimeline(all);
+        scenarioTimelineStats = scenarios;
+    }
+
+    /**
+     * The timeline of the whole simulation, available once the statistics are computed.
+     *
+     * @since 4.1
+     */
+    public Timeline getTimeline() {
+        return simStat.getTimeline();
+    }
+
+    /**
+     * The timeline of each scenario, available once the statistics are computed.
+     *
+     * @since 4.1
+     */
+    public Map<String, Timeline> getScenarioTimelines() {
+        return scenarioTimelineStats;
+    }
+
+    /**
+     * The requests per time and latency buckets.
+     *
+     * @since 4.1
+     */
+    public Heatmap getHeatmap() {
+        return heatmap;
+    }
+
+    /**
+     * The configured percentiles over a rolling window, for each time bucket.
+     *
+     * @since 4.1
+     */
+    public List<Heatmap.Series> getRollingPercentiles() {
+        int window = Math.max(1, config.getRollingWindow() / config.getTimelineResolution());
+        Long[][] values = heatmap.getRollingPercentiles(config.getPercentiles(), window);
+        List<Heatmap.Series> ret = new ArrayList<>(values.length);
+        for (int i = 0; i < values.length; i++) {
+            ret.add(new Heatmap.Series(config.getPercentileNames().get(i), values[i]));
+        }
+        return ret;
+    }
+
+    /**
+     * Releases the durations spilled to disk once the statistics are computed for the last time.
+     *
+     * @since 4.1
+     */
+    public void release() {
+        reqStats.values().forEach(RequestStat::release);
+        simStat.release();
     }
 
     public void setScenarioName(String name) {
@@ -94,6 +399,75 @@ public class SimulationContext {
     public void setStart(long start) {
         this.start = start;
         simStat.setStart(start);
+        timeline = new Timeline(start, config.getTimelineResolution());
+        heatmap = new Heatmap(start, config.getTimelineResolution());
+        if (!partial) {
+            // the level of a chunk is unknown until it is merged
+            lastEventTime = start;
+        }
+        if (config.hasWindow() && !config.isDetectWindow()) {
+            long duration = config.getWindowDuration();
+            setWindow(start + config.getWindowOffset(), duration > 0 ? start + config.getWindowOffset() + duration
+                    : Long.MAX_VALUE, false);
+        }
+    }
+
+    /**
+     * Only the requests started and ended within the window are aggregated.
+     *
+     * @since 4.1
+     */
+    public SimulationContext setWindow(long start, long end, boolean detected) {
+        windowStart = start;
+        windowEnd = end;
+        windowDetected = detected;
+        return this;
+    }
+
+    /**
+     * Describes the window of the aggregated requests, null if all the requests are aggregated.
+     *
+     * @since 4.1
+     */
+    public String getWindow() {
+        if (windowStart == Long.MIN_VALUE && windowEnd == Long.MAX_VALUE) {
+            return null;
+        }
+        String ret = String.format(Locale.ENGLISH, "from +%.1fs", (windowStart - start) / 1000.0);
+        if (windowEnd != Long.MAX_VALUE) {
+            ret += String.format(Locale.ENGLISH, " to +%.1fs", (windowEnd - start) / 1000.0);
+        }
+        return windowDetected ? "steady state " + ret : ret;
+    }
+
+    /**
+     * Describes the request filter, null when all the requests are reported.
+     *
+     * @since 4.1
+     */
+    public String getFilter() {
+        RequestFilter filter = config.getFilter();
+        return filter.isEmpty() ? null : filter.toString();
+    }
+
+    /**
+     * Returns a context that only aggregates the active users, to detect the steady state window.
+     *
+     * @since 4.1
+     */
+    public static SimulationContext usersOnly(String filePath, StatConfig config) {
+        SimulationContext ret = new SimulationContext(filePath, null, config, false);
+        ret.usersOnly = true;
+        return ret;
+    }
+
+    /**
+     * Detects the steady state window from the active users aggregated so far.
+     *
+     * @since 4.1
+     */
+    public long[] detectWindow() {
+        return SteadyState.detect(scenarioTimelines.values(), timeline);
     }
 
     public SimulationContext setScripts(List<String> scripts) {
@@ -112,28 +486,96 @@ public class SimulationContext {
         return this;
     }
 
-    public void addUser(String scenario) {
+    public void addUser(String scenario, long time) {
         CountMax count = users.computeIfAbsent(scenario, k -> new CountMax());
         count.incr();
+        changeLevel(time, 1);
+        timeline.addUser(time);
+        getScenarioTimeline(scenario).addUser(time);
     }
 
-    public void endUser(String scenario) {
+    public void endUser(String scenario, long time) {
         CountMax count = users.get(scenario);
+        if (count == null && partial) {
+            count = new CountMax();
+            users.put(scenario, count);
+        }
         if (count != null) {
             count.decr();
+            changeLevel(time, -1);
+            timeline.endUser(time);
+            getScenarioTimeline(scenario).endUser(time);
+        }
+    }
+
+    protected void changeLevel(long time, int delta) {
+        if (lastEventTime >= 0 && time > lastEventTime) {
+            concurrency.addTime(level, time - lastEventTime);
+        }
+        if (firstEventTime < 0) {
+            firstEventTime = time;
+        }
+        lastEventTime = Math.max(lastEventTime, time);
+        level += delta;
+        history.add(time, level);
+    }
+
+    protected Timeline getScenarioTimeline(String scenario) {
+        return scenarioTimelines.computeIfAbsent(scenario, s -> new Timeline(start, config.getTimelineResolution()));
+    }
+
+    protected static class PendingRequests {
+        RequestStat[] requests = new RequestStat[16];
+
+        long[] starts = new long[16];
+
+        long[] durations = new long[16];
+
+        boolean[] successes = new boolean[16];
+
+        int size;
+
+        void add(RequestStat request, long start, long duration, boolean success) {
+            if (size == requests.length) {
+                requests = Arrays.copyOf(requests, size * 2);
+                starts = Arrays.copyOf(starts, size * 2);
+                durations = Arrays.copyOf(durations, size * 2);
+                successes = Arrays.copyOf(successes, size * 2);
+            }
+            requests[size] = request;
+            starts[size] = start;
+            durations[size] = duration;
+            successes[size] = success;
+            size++;
         }
     }
 
     class CountMax {
         int current = 0, maximum = 0;
 
+        // number of users ended before the first start, only for partial context
+        int leading = 0;
+
+        boolean started;
+
         public void incr() {
+            started = true;
             current += 1;
             maximum = max(current, maximum);
         }
 
         public void decr() {
-            current -= 1;
+            if (started) {
+                current -= 1;
+            } else {
+                leading += 1;
+            }
+        }
+
+        public void merge(CountMax other) {
+            current -= other.leading;
+            maximum = max(maximum, current + other.maximum);
+            current += other.current;
         }
 
         public int getMax() {
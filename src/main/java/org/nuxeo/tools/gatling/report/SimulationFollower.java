@@ -0,0 +1,142 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Follows a simulation file that is still being written: each update parses only the lines appended since the
+ * previous one into the same simulation context.
+ * <p>
+ * An incomplete last line is parsed once terminated. When the file is truncated or replaced by a new file the
+ * simulation context is reset and the new file is parsed from the beginning.
+ *
+ * @since 4.1
+ */
+public class SimulationFollower implements Closeable {
+    private final static Logger log = Logger.getLogger(SimulationFollower.class);
+
+    protected final File file;
+
+    protected final Float apdexT;
+
+    protected final StatConfig config;
+
+    protected FileChannel channel;
+
+    protected Object fileKey;
+
+    protected SimulationReader reader;
+
+    protected SimulationParser parser;
+
+    protected SimulationContext context;
+
+    public SimulationFollower(File file, Float apdexT, StatConfig config) {
+        if (Utils.GZ.equals(Utils.getFileExtension(file))) {
+            throw new IllegalArgumentException("Can not follow a compressed file: " + file.getAbsolutePath());
+        }
+        this.file = file;
+        this.apdexT = apdexT;
+        this.config = config;
+        if (config.isDetectWindow()) {
+            log.warn("The steady state can not be detected while following, all the requests are reported");
+        }
+    }
+
+    /**
+     * Returns the simulation context, null until the header of the simulation has been written.
+     */
+    public SimulationContext getContext() {
+        return context;
+    }
+
+    /**
+     * Parses the lines appended since the last update, returns the number of lines parsed.
+     */
+    public long update() throws IOException {
+        if (!file.exists()) {
+            // not yet created or being replaced
+            return 0;
+        }
+        if (channel == null || isReplaced()) {
+            open();
+        }
+        long ret = 0;
+        SimulationRecord line;
+        if (parser == null) {
+            line = reader.next();
+            if (line == null) {
+                return 0;
+            }
+            List<String> header = line.toList();
+            parser = ParserFactory.getParser(file, apdexT, header).setStatConfig(config);
+            context = new SimulationContext(file.getAbsolutePath(), apdexT, config, false);
+            parser.parseHeader(context, line);
+            ret++;
+        }
+        while ((line = reader.next()) != null) {
+            parser.parseLine(context, line);
+            ret++;
+        }
+        return ret;
+    }
+
+    protected boolean isReplaced() throws IOException {
+        Object key = getFileKey();
+        if (key != null && !key.equals(fileKey)) {
+            log.warn("Simulation file replaced, restarting: " + file.getAbsolutePath());
+            return true;
+        }
+        if (channel.size() < reader.bytesRead) {
+            log.warn("Simulation file truncated, restarting: " + file.getAbsolutePath());
+            return true;
+        }
+        return false;
+    }
+
+    protected void open() throws IOException {
+        close();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        fileKey = getFileKey();
+        reader = new SimulationReader(channel).setFollow(true);
+        parser = null;
+        context = null;
+    }
+
+    protected Object getFileKey() throws IOException {
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+        channel = null;
+    }
+}
@@ -18,26 +18,52 @@ package org.nuxeo.tools.gatling.report;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
-public abstract class SimulationParser {
-
-    protected static final String OK = "OK";
+import org.apache.log4j.Logger;
+import org.nuxeo.tools.gatling.report.SimulationRecord.Keyword;
 
-    protected static final String REQUEST = "REQUEST";
+public abstract class SimulationParser {
 
-    protected static final String RUN = "RUN";
+    private final static Logger log = Logger.getLogger(SimulationParser.class);
 
-    protected static final String USER = "USER";
+    protected static final byte[] OK = "OK".getBytes(StandardCharsets.US_ASCII);
 
-    protected static final String START = "START";
+    protected static final long MIN_CHUNK_SIZE = 16 * 1024 * 1024;
 
-    protected static final String END = "END";
+    protected static final int MAX_REQUEST_NAMES = 64 * 1024;
 
     protected final File file;
 
     protected final Float apdexT;
 
+    protected final SymbolTable symbols = new SymbolTable();
+
+    // bounded since request names can be generated
+    protected SymbolTable requestNames = newRequestNames(StatConfig.DEFAULT);
+
+    protected int parallelism = 1;
+
+    protected long minChunkSize = MIN_CHUNK_SIZE;
+
+    protected StatConfig config = StatConfig.DEFAULT;
+
+    protected RequestFilter filter = config.getFilter();
+
+    protected boolean chunk;
+
+    protected SimulationCache cache;
+
+    protected SimulationCache.Writer cacheWriter;
+
     public SimulationParser(File file, Float apdexT) {
         this.file = file;
         this.apdexT = apdexT;
@@ -48,74 +74,358 @@ public abstract class SimulationParser {
         this.apdexT = null;
     }
 
+    /**
+     * Number of threads used to parse an uncompressed simulation file, 1 for a sequential parsing.
+     *
+     * @since 4.1
+     */
+    public SimulationParser setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /**
+     * @since 4.1
+     */
+    public SimulationParser setStatConfig(StatConfig config) {
+        this.config = config;
+        this.filter = config.getFilter();
+        this.requestNames = newRequestNames(config);
+        return this;
+    }
+
+    protected static SymbolTable newRequestNames(StatConfig config) {
+        NameNormalizer normalizer = config.getNameNormalizer();
+        return new SymbolTable(MAX_REQUEST_NAMES, normalizer.isEmpty() ? null : normalizer::normalize);
+    }
+
+    /**
+     * Loads the simulation from the cache when it is valid, otherwise writes the cache once parsed.
+     *
+     * @since 4.1
+     */
+    public SimulationParser setCache(SimulationCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Returns a new parser of the same format, used to parse a chunk of the file.
+     *
+     * @since 4.1
+     */
+    protected abstract SimulationParser newParser();
+
     public SimulationContext parse() throws IOException {
-        SimulationContext ret = new SimulationContext(file.getAbsolutePath(), apdexT);
+        SimulationContext ret;
+        if (cache != null) {
+            ret = cache.load(file, apdexT, config);
+            if (ret != null) {
+                ret.computeStat();
+                ret.release();
+                return ret;
+            }
+        }
+        ret = new SimulationContext(file.getAbsolutePath(), apdexT, config, false);
+        SimulationCache.Dictionary dictionary = null;
+        List<SimulationCache.Writer> writers = new ArrayList<>();
+        try {
+            long headerOffset;
+            try (SimulationReader reader = new SimulationReader(file)) {
+                SimulationRecord line;
+                parseHeader(ret, reader.next());
+                headerOffset = reader.getOffset();
+                if (config.isDetectWindow()) {
+                    detectWindow(ret);
+                }
+                if (cache != null) {
+                    if (ret.isFiltered() || !config.getNameNormalizer().isEmpty()) {
+                        // the cache must hold all the requests with their names, it is only read when filtering
+                        log.info("Not caching a filtered simulation: " + file.getAbsolutePath());
+                    } else {
+                        dictionary = cache.newDictionary();
+                    }
+                }
+                if (!useChunks()) {
+                    if (dictionary != null) {
+                        cacheWriter = cache.newWriter(dictionary);
+                        writers.add(cacheWriter);
+                    }
+                    while ((line = reader.next()) != null) {
+                        parseLine(ret, line);
+                    }
+                }
+            }
+            if (useChunks()) {
+                parseChunks(ret, headerOffset, dictionary, writers);
+            }
+            if (dictionary != null) {
+                cache.save(file, ret, dictionary, writers);
+            }
+        } finally {
+            writers.forEach(SimulationCache.Writer::close);
+        }
+        ret.computeStat();
+        ret.release();
+        return ret;
+    }
+
+    /**
+     * Reads the user lines a first time to detect the steady state window.
+     */
+    protected void detectWindow(SimulationContext ret) throws IOException {
+        long t0 = System.currentTimeMillis();
+        SimulationContext users = SimulationContext.usersOnly(ret.filePath, config);
+        SimulationParser parser = newParser().setStatConfig(config);
         try (SimulationReader reader = new SimulationReader(file)) {
-            List<String> line;
-            String name;
-            String scenario;
-            long start, end;
-            boolean success;
-            List<String> header = reader.readNext();
-            checkLine(header);
-
-            ret.setSimulationName(getSimulationName(header));
-            ret.setScenarioName(getScenario(header));
-            ret.setStart(Long.parseLong(getSimulationStart(header)));
-
-            while ((line = reader.readNext()) != null) {
-                scenario = getScenario(line);
-
-                switch (getType(line)) {
-                    case RUN:
-                        break;
-                    case REQUEST:
-                        name = getRequestName(line);
-                        start = getRequestStart(line);
-                        end = getRequestEnd(line);
-                        success = getRequestSuccess(line);
-                        ret.addRequest(scenario, name, start, end, success);
-                        break;
-                    case USER:
-                        switch (getUserType(line)) {
-                            case START:
-                                ret.addUser(scenario);
-                                break;
-                            case END:
-                                ret.endUser(scenario);
-                                break;
+            parser.parseHeader(users, reader.next());
+            SimulationRecord line;
+            while ((line = reader.next()) != null) {
+                if (parser.getType(line) == Keyword.USER) {
+                    parser.parseLine(users, line);
+                }
+            }
+        }
+        long[] window = users.detectWindow();
+        if (window == null) {
+            log.warn("No active users to detect a steady state: " + file.getAbsolutePath());
+            return;
+        }
+        ret.setWindow(window[0], window[1], true);
+        log.info(String.format("Detected %s in %d ms", ret.getWindow(), System.currentTimeMillis() - t0));
+    }
+
+    protected void parseHeader(SimulationContext ret, SimulationRecord header) {
+        if (header == null) {
+            invalidFile();
+        }
+        checkLine(header);
+        ret.setSimulationName(getSimulationName(header));
+        ret.setScenarioName(getScenario(header));
+        ret.setStart(getSimulationStart(header));
+    }
+
+    protected void parseLine(SimulationContext ret, SimulationRecord line) {
+        String name;
+        String scenario;
+        long start, end;
+        boolean success;
+        switch (getType(line)) {
+        case RUN:
+            break;
+        case REQUEST:
+            start = getRequestStart(line);
+            end = getRequestEnd(line);
+            success = getRequestSuccess(line);
+            if (!filter.accept(start, end, success) || !ret.isInWindow(start, end)) {
+                // rejected before reading the names
+                break;
+            }
+            scenario = getScenario(line);
+            name = getRequestName(line);
+            if (!filter.acceptRequest(name) || !filter.acceptScenario(scenario)) {
+                break;
+            }
+            String user = null;
+            if (scenario == null && chunk) {
+                // the user has started in a previous chunk
+                user = getRequestUser(line);
+                ret.addUnresolvedScenario(name, user);
+            }
+            ret.addRequest(scenario, name, start, end, success);
+            if (cacheWriter != null && user != null) {
+                cacheWriter.addUnresolvedRequest(user, name, start, end, success);
+            } else if (cacheWriter != null) {
+                cacheWriter.addRequest(scenario, name, start, end, success);
+            }
+            break;
+        case USER:
+            scenario = getScenario(line);
+            Keyword type = getUserType(line);
+            long time;
+            switch (type) {
+            case START:
+                time = getUserStart(line);
+                ret.addUser(scenario, time);
+                break;
+            case END:
+                time = getUserEnd(line);
+                ret.endUser(scenario, time);
+                break;
+            default:
+                return;
+            }
+            if (cacheWriter != null) {
+                cacheWriter.addUser(scenario, type == Keyword.START, time);
+            }
+            break;
+        }
+    }
+
+    protected boolean useChunks() {
+        if (config.getFilter().hasScenarioFilter() && !hasRequestScenario()) {
+            // a chunk doesn't know the scenario of the users started before it
+            return false;
+        }
+        return parallelism > 1 && !Utils.GZ.equals(Utils.getFileExtension(file))
+                && file.length() >= 2 * minChunkSize;
+    }
+
+    /**
+     * True when the scenario of a request is read from its line, not from the start of its user.
+     *
+     * @since 4.1
+     */
+    protected boolean hasRequestScenario() {
+        return true;
+    }
+
+    /**
+     * Splits the file at line boundaries, aggregates each chunk into a partial context on a fork join pool and merges
+     * the partial contexts in file order.
+     */
+    protected void parseChunks(SimulationContext ret, long offset, SimulationCache.Dictionary dictionary,
+            List<SimulationCache.Writer> writers) throws IOException {
+        long t0 = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            List<Long> bounds = getChunkBounds(channel, offset);
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                List<SimulationParser> parsers = new ArrayList<>();
+                List<ForkJoinTask<SimulationContext>> tasks = new ArrayList<>();
+                for (int i = 0; i < bounds.size() - 1; i++) {
+                    SimulationParser parser = newParser().setStatConfig(config);
+                    parser.chunk = true;
+                    if (dictionary != null) {
+                        parser.cacheWriter = cache.newWriter(dictionary);
+                        writers.add(parser.cacheWriter);
+                    }
+                    parsers.add(parser);
+                    long from = bounds.get(i);
+                    long to = bounds.get(i + 1);
+                    tasks.add(pool.submit(() -> parser.parseChunk(ret, channel, from, to)));
+                }
+                for (int i = 0; i < tasks.size(); i++) {
+                    SimulationContext partial = tasks.get(i).get();
+                    for (Map.Entry<String, String> entry : partial.unresolvedScenarios.entrySet()) {
+                        RequestStat request = partial.reqStats.get(entry.getKey());
+                        if (request != null) {
+                            // null when the requests are out of the window
+                            request.setScenario(resolveScenario(parsers.subList(0, i), entry.getValue()));
                         }
-                        break;
+                    }
+                    ret.merge(partial);
+                }
+                for (int i = 1; i < parsers.size(); i++) {
+                    SimulationCache.Writer writer = parsers.get(i).cacheWriter;
+                    if (writer != null) {
+                        List<SimulationParser> previousParsers = parsers.subList(0, i);
+                        writer.resolveUsers(user -> resolveScenario(previousParsers, user));
+                    }
+                }
+                log.info(String.format("Parsed %d chunks with %d threads in %d ms", tasks.size(), parallelism,
+                        System.currentTimeMillis() - t0));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while parsing " + file.getAbsolutePath(), e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
                 }
+                throw new IOException("Failed to parse " + file.getAbsolutePath(), e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    protected List<Long> getChunkBounds(FileChannel channel, long offset) throws IOException {
+        long size = channel.size();
+        int count = (int) Math.max(1, Math.min(4L * parallelism, (size - offset) / minChunkSize));
+        long chunkSize = (size - offset) / count;
+        List<Long> ret = new ArrayList<>(count + 1);
+        ret.add(offset);
+        for (int i = 1; i < count; i++) {
+            long bound = Utils.nextLineOffset(channel, offset + i * chunkSize);
+            if (bound > ret.get(ret.size() - 1) && bound < size) {
+                ret.add(bound);
+            }
+        }
+        ret.add(size);
+        return ret;
+    }
+
+    protected SimulationContext parseChunk(SimulationContext context, FileChannel channel, long from, long to)
+            throws IOException {
+        SimulationContext ret = new SimulationContext(context.filePath, apdexT, config, true);
+        ret.setSimulationName(context.simulationName);
+        ret.setScenarioName(context.scenarioName);
+        ret.setStart(context.start);
+        ret.setWindow(context.windowStart, context.windowEnd, context.windowDetected);
+        try (SimulationReader reader = new SimulationReader(Utils.getChannelFor(channel, from, to))) {
+            SimulationRecord line;
+            while ((line = reader.next()) != null) {
+                parseLine(ret, line);
             }
         }
-        ret.computeStat();
         return ret;
     }
 
-    protected void checkLine(List<String> line) {
+    protected String resolveScenario(List<SimulationParser> previousParsers, String user) {
+        for (int i = previousParsers.size() - 1; i >= 0; i--) {
+            String ret = previousParsers.get(i).getUserScenario(user);
+            if (ret != null) {
+                return ret;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the user of a request for formats where the scenario is not part of the request line.
+     *
+     * @since 4.1
+     */
+    protected String getRequestUser(SimulationRecord line) {
+        return null;
+    }
+
+    /**
+     * Returns the scenario of a user started by this parser.
+     *
+     * @since 4.1
+     */
+    protected String getUserScenario(String user) {
+        return null;
+    }
+
+    protected void checkLine(SimulationRecord line) {
         if (line.size() <= 2) {
             invalidFile();
         }
     }
 
-    protected abstract String getSimulationName(List<String> line);
+    protected abstract String getSimulationName(SimulationRecord line);
+
+    protected abstract long getSimulationStart(SimulationRecord line);
+
+    protected abstract String getScenario(SimulationRecord line);
 
-    protected abstract String getSimulationStart(List<String> line);
+    protected abstract Keyword getType(SimulationRecord line);
 
-    protected abstract String getScenario(List<String> line);
+    protected abstract Keyword getUserType(SimulationRecord line);
 
-    protected abstract String getType(List<String> line);
+    protected abstract String getRequestName(SimulationRecord line);
 
-    protected abstract String getUserType(List<String> line);
+    protected abstract long getUserStart(SimulationRecord line);
 
-    protected abstract String getRequestName(List<String> line);
+    protected abstract long getUserEnd(SimulationRecord line);
 
-    protected abstract Long getRequestStart(List<String> line);
+    protected abstract long getRequestStart(SimulationRecord line);
 
-    protected abstract Long getRequestEnd(List<String> line);
+    protected abstract long getRequestEnd(SimulationRecord line);
 
-    protected abstract boolean getRequestSuccess(List<String> line);
+    protected abstract boolean getRequestSuccess(SimulationRecord line);
 
     protected SimulationContext invalidFile() {
         throw new IllegalArgumentException(String.format(
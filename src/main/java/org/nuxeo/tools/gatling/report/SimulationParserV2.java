@@ -17,7 +17,8 @@
 package org.nuxeo.tools.gatling.report;
 
 import java.io.File;
-import java.util.List;
+
+import org.nuxeo.tools.gatling.report.SimulationRecord.Keyword;
 
 /**
  * Gatling 2.1.7 simulation format
@@ -32,39 +33,52 @@ public class SimulationParserV2 extends SimulationParser {
         super(file);
     }
 
-    protected String getSimulationName(List<String> line) {
-        return line.get(1);
+    @Override
+    protected SimulationParser newParser() {
+        return new SimulationParserV2(file, apdexT);
+    }
+
+    protected String getSimulationName(SimulationRecord line) {
+        return line.getString(1);
+    }
+
+    protected long getSimulationStart(SimulationRecord line) {
+        return line.getLong(3);
+    }
+
+    protected String getScenario(SimulationRecord line) {
+        return line.intern(0, symbols);
     }
 
-    protected String getSimulationStart(List<String> line) {
-        return line.get(3);
+    protected Keyword getType(SimulationRecord line) {
+        return line.getKeyword(2);
     }
 
-    protected String getScenario(List<String> line) {
-        return line.get(0);
+    protected Keyword getUserType(SimulationRecord line) {
+        return line.getKeyword(3);
     }
 
-    protected String getType(List<String> line) {
-        return line.get(2);
+    protected String getRequestName(SimulationRecord line) {
+        return line.intern(4, requestNames);
     }
 
-    protected String getUserType(List<String> line) {
-        return line.get(3);
+    protected long getUserStart(SimulationRecord line) {
+        return line.getLong(4);
     }
 
-    protected String getRequestName(List<String> line) {
-        return line.get(4);
+    protected long getUserEnd(SimulationRecord line) {
+        return line.getLong(5);
     }
 
-    protected Long getRequestStart(List<String> line) {
-        return Long.parseLong(line.get(6));
+    protected long getRequestStart(SimulationRecord line) {
+        return line.getLong(6);
     }
 
-    protected Long getRequestEnd(List<String> line) {
-        return Long.parseLong(line.get(8));
+    protected long getRequestEnd(SimulationRecord line) {
+        return line.getLong(8);
     }
 
-    protected boolean getRequestSuccess(List<String> line) {
-        return OK.equals(line.get(9));
+    protected boolean getRequestSuccess(SimulationRecord line) {
+        return line.is(9, OK);
     }
 }
@@ -18,7 +18,8 @@
 package org.nuxeo.tools.gatling.report;
 
 import java.io.File;
-import java.util.List;
+
+import org.nuxeo.tools.gatling.report.SimulationRecord.Keyword;
 
 /**
  * Gatling 2.3.1 simulation format
@@ -33,39 +34,52 @@ public class SimulationParserV23 extends SimulationParser {
         super(file);
     }
 
-    protected String getSimulationName(List<String> line) {
-        return line.get(3);
+    @Override
+    protected SimulationParser newParser() {
+        return new SimulationParserV23(file, apdexT);
+    }
+
+    protected String getSimulationName(SimulationRecord line) {
+        return line.getString(3);
+    }
+
+    protected long getSimulationStart(SimulationRecord line) {
+        return line.getLong(4);
+    }
+
+    protected String getScenario(SimulationRecord line) {
+        return line.intern(1, symbols);
     }
 
-    protected String getSimulationStart(List<String> line) {
-        return line.get(4);
+    protected Keyword getType(SimulationRecord line) {
+        return line.getKeyword(0);
     }
 
-    protected String getScenario(List<String> line) {
-        return line.get(1);
+    protected Keyword getUserType(SimulationRecord line) {
+        return line.getKeyword(3);
     }
 
-    protected String getType(List<String> line) {
-        return line.get(0);
+    protected String getRequestName(SimulationRecord line) {
+        return line.intern(4, requestNames);
     }
 
-    protected String getUserType(List<String> line) {
-        return line.get(3);
+    protected long getUserStart(SimulationRecord line) {
+        return line.getLong(4);
     }
 
-    protected String getRequestName(List<String> line) {
-        return line.get(4);
+    protected long getUserEnd(SimulationRecord line) {
+        return line.getLong(5);
     }
 
-    protected Long getRequestStart(List<String> line) {
-        return Long.parseLong(line.get(5));
+    protected long getRequestStart(SimulationRecord line) {
+        return line.getLong(5);
     }
 
-    protected Long getRequestEnd(List<String> line) {
-        return Long.parseLong(line.get(6));
+    protected long getRequestEnd(SimulationRecord line) {
+        return line.getLong(6);
     }
 
-    protected boolean getRequestSuccess(List<String> line) {
-        return OK.equals(line.get(7));
+    protected boolean getRequestSuccess(SimulationRecord line) {
+        return line.is(7, OK);
     }
 }
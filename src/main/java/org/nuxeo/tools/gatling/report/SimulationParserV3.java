@@ -18,9 +18,10 @@ package org.nuxeo.tools.gatling.report;
 
 import java.io.File;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
+import org.nuxeo.tools.gatling.report.SimulationRecord.Keyword;
+
 /**
  * Gatling 3.? simulation format
  */
@@ -28,64 +29,94 @@ public class SimulationParserV3 extends SimulationParser {
 
     protected final Map<String, String> userIdToScenarioMap;
 
+    protected final SymbolTable userIds = new SymbolTable();
+
     public SimulationParserV3(File file, Float apdexT) {
         super(file, apdexT);
-        this.userIdToScenarioMap = new HashMap();
+        this.userIdToScenarioMap = new HashMap<>();
     }
 
     public SimulationParserV3(File file) {
         super(file);
-        this.userIdToScenarioMap = new HashMap();
+        this.userIdToScenarioMap = new HashMap<>();
+    }
+
+    @Override
+    protected SimulationParser newParser() {
+        return new SimulationParserV3(file, apdexT);
     }
 
-    protected String getSimulationName(List<String> line) {
-        return line.get(2);
+    protected String getSimulationName(SimulationRecord line) {
+        return line.getString(2);
     }
 
-    protected String getSimulationStart(List<String> line) {
-        return line.get(3);
+    protected long getSimulationStart(SimulationRecord line) {
+        return line.getLong(3);
     }
 
-    protected String getScenario(List<String> line) {
-        if (getType(line).equals(REQUEST)) {
-            final String userId = line.get(1);
+    protected String getScenario(SimulationRecord line) {
+        if (getType(line) == Keyword.REQUEST) {
+            final String userId = line.intern(1, userIds);
             return this.userIdToScenarioMap.get(userId);
         } else {
-            return line.get(1);
+            return line.intern(1, symbols);
         }
     }
 
-    protected String getType(List<String> line) {
-        return line.get(0);
+    @Override
+    protected String getRequestUser(SimulationRecord line) {
+        return line.intern(1, userIds);
+    }
+
+    @Override
+    protected String getUserScenario(String user) {
+        return userIdToScenarioMap.get(user);
+    }
+
+    @Override
+    protected boolean hasRequestScenario() {
+        return false;
+    }
+
+    protected Keyword getType(SimulationRecord line) {
+        return line.getKeyword(0);
     }
 
-    protected String getUserType(List<String> line) {
+    protected Keyword getUserType(SimulationRecord line) {
         // In Gatling 3.0, the REQUEST line contains the userid, but no longer contains the scenario.
         // To determine a REQUEST's scenario, we need to look it up based on the user id, so save the mapping.
         // Ugly to do it here like this, but the alternative is to add new methods to SimulationParser that would be Gatling 3.0 specfic.
         saveUserIdAndScenario(line);
-        return line.get(3);
+        return line.getKeyword(3);
+    }
+
+    protected String getRequestName(SimulationRecord line) {
+        return line.intern(3, requestNames);
+    }
+
+    protected long getUserStart(SimulationRecord line) {
+        return line.getLong(4);
     }
 
-    protected String getRequestName(List<String> line) {
-        return line.get(3);
+    protected long getUserEnd(SimulationRecord line) {
+        return line.getLong(5);
     }
 
-    protected Long getRequestStart(List<String> line) {
-        return Long.parseLong(line.get(4));
+    protected long getRequestStart(SimulationRecord line) {
+        return line.getLong(4);
     }
 
-    protected Long getRequestEnd(List<String> line) {
-        return Long.parseLong(line.get(5));
+    protected long getRequestEnd(SimulationRecord line) {
+        return line.getLong(5);
     }
 
-    protected boolean getRequestSuccess(List<String> line) {
-        return OK.equals(line.get(6));
+    protected boolean getRequestSuccess(SimulationRecord line) {
+        return line.is(6, OK);
     }
 
-    private void saveUserIdAndScenario(List<String> line) {
+    private void saveUserIdAndScenario(SimulationRecord line) {
         final String scenario = getScenario(line);
-        final String userId = line.get(2);
+        final String userId = line.intern(2, userIds);
         userIdToScenarioMap.put(userId, scenario);
     }
 
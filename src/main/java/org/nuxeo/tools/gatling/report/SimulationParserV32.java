@@ -18,9 +18,10 @@ package org.nuxeo.tools.gatling.report;
 
 import java.io.File;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
+import org.nuxeo.tools.gatling.report.SimulationRecord.Keyword;
+
 /**
  * Gatling 3.2 simulation format
  */
@@ -28,6 +29,8 @@ public class SimulationParserV32 extends SimulationParser {
 
     final protected Map<String, String> userScenario = new HashMap<>();
 
+    protected final SymbolTable userIds = new SymbolTable();
+
     public SimulationParserV32(File file, Float apdexT) {
         super(file, apdexT);
     }
@@ -36,52 +39,84 @@ public class SimulationParserV32 extends SimulationParser {
         super(file);
     }
 
-    protected String getSimulationName(List<String> line) {
-        return line.get(2);
+    @Override
+    protected SimulationParser newParser() {
+        return new SimulationParserV32(file, apdexT);
+    }
+
+    protected String getSimulationName(SimulationRecord line) {
+        return line.getString(2);
     }
 
-    protected String getSimulationStart(List<String> line) {
-        return line.get(3);
+    protected long getSimulationStart(SimulationRecord line) {
+        return line.getLong(3);
     }
 
-    protected String getScenario(List<String> line) {
+    protected String getScenario(SimulationRecord line) {
         String user;
-        if (USER.equals(line.get(0))) {
-            user = line.get(2);
-            if (START.equals(line.get(3))) {
-                String ret = line.get(1);
+        Keyword type = line.getKeyword(0);
+        if (type == Keyword.USER) {
+            user = line.intern(2, userIds);
+            if (line.getKeyword(3) == Keyword.START) {
+                String ret = line.intern(1, symbols);
                 userScenario.put(user, ret);
+            } else if (chunk && !userScenario.containsKey(user)) {
+                // the user has started in a previous chunk
+                return line.intern(1, symbols);
             }
-        } else if (RUN.equals(line.get(0))) {
-            return line.get(1);
+        } else if (type == Keyword.RUN) {
+            return line.intern(1, symbols);
         } else {
-            user = line.get(1);
+            user = line.intern(1, userIds);
         }
         return userScenario.get(user);
     }
 
-    protected String getType(List<String> line) {
-        return line.get(0);
+    @Override
+    protected boolean hasRequestScenario() {
+        return false;
     }
 
-    protected String getUserType(List<String> line) {
+    @Override
+    protected String getRequestUser(SimulationRecord line) {
+        return line.intern(1, userIds);
+    }
+
+    @Override
+    protected String getUserScenario(String user) {
+        return userScenario.get(user);
+    }
+
+    protected Keyword getType(SimulationRecord line) {
+        return line.getKeyword(0);
+    }
+
+    protected Keyword getUserType(SimulationRecord line) {
+
+        return line.getKeyword(3);
+    }
+
+    protected String getRequestName(SimulationRecord line) {
+        return line.intern(3, requestNames);
+    }
 
-        return line.get(3);
+    protected long getUserStart(SimulationRecord line) {
+        return line.getLong(4);
     }
 
-    protected String getRequestName(List<String> line) {
-        return line.get(3);
+    protected long getUserEnd(SimulationRecord line) {
+        return line.getLong(5);
     }
 
-    protected Long getRequestStart(List<String> line) {
-        return Long.parseLong(line.get(4));
+    protected long getRequestStart(SimulationRecord line) {
+        return line.getLong(4);
     }
 
-    protected Long getRequestEnd(List<String> line) {
-        return Long.parseLong(line.get(5));
+    protected long getRequestEnd(SimulationRecord line) {
+        return line.getLong(5);
     }
 
-    protected boolean getRequestSuccess(List<String> line) {
-        return OK.equals(line.get(6));
+    protected boolean getRequestSuccess(SimulationRecord line) {
+        return line.is(6, OK);
     }
 }
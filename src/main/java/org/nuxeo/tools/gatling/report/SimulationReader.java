@@ -18,39 +18,160 @@
  */
 package org.nuxeo.tools.gatling.report;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.io.Reader;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
 
-import net.quux00.simplecsv.CsvParser;
-import net.quux00.simplecsv.CsvParserBuilder;
-import net.quux00.simplecsv.CsvReader;
-
 /**
- * A CsvReader that skip assertions lines
+ * A tab separated record scanner working on bytes that skip assertions lines. The returned record is reused between
+ * calls and is only valid until the next call to {@link #next()}.
  *
  * @since 3.0
  */
-public class SimulationReader extends CsvReader {
+public class SimulationReader implements Closeable {
+
+    protected static final byte[] ASSERTION = "assertion".getBytes(StandardCharsets.US_ASCII);
+
+    protected static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    protected final ReadableByteChannel channel;
+
+    protected final SimulationRecord record = new SimulationRecord();
+
+    protected byte[] buffer;
+
+    protected ByteBuffer byteBuffer;
+
+    protected int position, limit;
+
+    protected boolean eof;
 
-    protected static final String ASSERTION = "assertion";
+    protected long bytesRead;
+
+    protected boolean follow;
 
     public SimulationReader(File file) throws IOException {
-        this(Utils.getReaderFor(file), 0,
-                new CsvParserBuilder().trimWhitespace(true).allowUnbalancedQuotes(true).separator('\t').build());
+        this(Utils.getChannelFor(file));
     }
 
-    public SimulationReader(Reader reader, int line, CsvParser csvParser) {
-        super(reader, line, csvParser);
+    public SimulationReader(ReadableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
     }
 
-    @Override
+    public SimulationReader(ReadableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        buffer = new byte[bufferSize];
+        byteBuffer = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * In follow mode the end of the stream is not final: an incomplete last line is kept until it is terminated and
+     * the channel is read again by the next call.
+     *
+     * @since 4.1
+     */
+    public SimulationReader setFollow(boolean follow) {
+        this.follow = follow;
+        return this;
+    }
+
+    /**
+     * Returns the next record or null at the end of the stream.
+     */
+    public SimulationRecord next() throws IOException {
+        SimulationRecord ret;
+        do {
+            ret = nextLine();
+        } while (ret != null && ((ret.size() == 1 && ret.isEmpty(0)) || ret.startsWithIgnoreCase(0, ASSERTION)));
+        return ret;
+    }
+
+    /**
+     * Returns the next record materialized as a list of String or null at the end of the stream.
+     */
     public List<String> readNext() throws IOException {
-        List<String> ret = super.readNext();
-        if (ret != null && !ret.isEmpty() && ret.get(0).toLowerCase().startsWith(ASSERTION)) {
-            return readNext();
+        SimulationRecord ret = next();
+        if (ret == null) {
+            return null;
         }
-        return ret;
+        return ret.toList();
+    }
+
+    /**
+     * Returns the offset in the stream of the next line to read.
+     */
+    public long getOffset() {
+        return bytesRead - (limit - position);
+    }
+
+    protected SimulationRecord nextLine() throws IOException {
+        int scan = position;
+        while (true) {
+            for (int i = scan; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    int end = i;
+                    if (end > position && buffer[end - 1] == '\r') {
+                        end--;
+                    }
+                    record.set(buffer, position, end);
+                    position = i + 1;
+                    return record;
+                }
+            }
+            int scanned = limit - position;
+            if (!fill()) {
+                if (position < limit && !follow) {
+                    // last line without line terminator
+                    record.set(buffer, position, limit);
+                    position = limit;
+                    return record;
+                }
+                return null;
+            }
+            scan = position + scanned;
+        }
+    }
+
+    /**
+     * Moves the pending bytes at the beginning of the buffer and reads more data, the buffer grows when a line is
+     * larger than the buffer.
+     */
+    protected boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            byteBuffer = ByteBuffer.wrap(buffer);
+        }
+        ((Buffer) byteBuffer).limit(buffer.length);
+        ((Buffer) byteBuffer).position(limit);
+        int read;
+        do {
+            read = channel.read(byteBuffer);
+        } while (read == 0);
+        if (read < 0) {
+            eof = !follow;
+            return false;
+        }
+        limit += read;
+        bytesRead += read;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
     }
 }
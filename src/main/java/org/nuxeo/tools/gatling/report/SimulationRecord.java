@@ -0,0 +1,197 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A reusable view on a tab separated line of a simulation log. Columns are kept as offsets in the reader buffer so
+ * nothing is allocated unless a column is explicitly materialized as a String.
+ *
+ * @since 4.1
+ */
+public class SimulationRecord {
+
+    protected static final byte TAB = '\t';
+
+    protected static final byte QUOTE = '"';
+
+    protected byte[] buffer;
+
+    protected int[] starts = new int[16];
+
+    protected int[] ends = new int[16];
+
+    protected int size;
+
+    /**
+     * Points the record to the line {@code buffer[from, to[}, the line terminator must be excluded.
+     */
+    protected SimulationRecord set(byte[] buffer, int from, int to) {
+        this.buffer = buffer;
+        size = 0;
+        int start = from;
+        for (int i = from; i <= to; i++) {
+            if (i == to || buffer[i] == TAB) {
+                addColumn(start, i);
+                start = i + 1;
+            }
+        }
+        return this;
+    }
+
+    protected void addColumn(int start, int end) {
+        // trim whitespace
+        while (start < end && buffer[start] <= ' ') {
+            start++;
+        }
+        while (end > start && buffer[end - 1] <= ' ') {
+            end--;
+        }
+        // remove enclosing quotes
+        if (end - start >= 2 && buffer[start] == QUOTE && buffer[end - 1] == QUOTE) {
+            start++;
+            end--;
+        }
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty(int column) {
+        return starts[column] == ends[column];
+    }
+
+    /**
+     * Returns true if the column content is exactly the token.
+     */
+    public boolean is(int column, byte[] token) {
+        checkColumn(column);
+        int start = starts[column];
+        if (ends[column] - start != token.length) {
+            return false;
+        }
+        for (int i = 0; i < token.length; i++) {
+            if (buffer[start + i] != token[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the column starts with the lower case token ignoring case.
+     */
+    public boolean startsWithIgnoreCase(int column, byte[] lowerCaseToken) {
+        checkColumn(column);
+        int start = starts[column];
+        if (ends[column] - start < lowerCaseToken.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCaseToken.length; i++) {
+            byte b = buffer[start + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCaseToken[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Keyword getKeyword(int column) {
+        for (Keyword keyword : Keyword.VALUES) {
+            if (is(column, keyword.token)) {
+                return keyword;
+            }
+        }
+        return Keyword.OTHER;
+    }
+
+    /**
+     * Parses a positive decimal number like a timestamp directly from the bytes.
+     */
+    public long getLong(int column) {
+        checkColumn(column);
+        int start = starts[column];
+        int end = ends[column];
+        if (start == end) {
+            throw new NumberFormatException("Empty column " + column);
+        }
+        long ret = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("For input string: \"" + getString(column) + "\"");
+            }
+            ret = ret * 10 + digit;
+        }
+        return ret;
+    }
+
+    public String getString(int column) {
+        checkColumn(column);
+        return new String(buffer, starts[column], ends[column] - starts[column], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the column content as a String, only the first occurrence of a value is materialized.
+     */
+    public String intern(int column, SymbolTable symbols) {
+        checkColumn(column);
+        return symbols.intern(buffer, starts[column], ends[column] - starts[column]);
+    }
+
+    public List<String> toList() {
+        List<String> ret = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ret.add(getString(i));
+        }
+        return ret;
+    }
+
+    protected void checkColumn(int column) {
+        if (column >= size) {
+            throw new IndexOutOfBoundsException("Index: " + column + ", Size: " + size);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toList().toString();
+    }
+
+    public enum Keyword {
+        RUN, REQUEST, USER, START, END, ASSERTION, OTHER;
+
+        protected static final Keyword[] VALUES = { REQUEST, USER, RUN, START, END, ASSERTION };
+
+        protected final byte[] token = name().getBytes(StandardCharsets.US_ASCII);
+    }
+}
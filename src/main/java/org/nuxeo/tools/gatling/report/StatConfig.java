@@ -0,0 +1,324 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * How request statistics are computed.
+ *
+ * @since 4.1
+ */
+public class StatConfig {
+
+    protected static final int DEFAULT_SIGNIFICANT_DIGITS = 3;
+
+    protected static final double[] DEFAULT_PERCENTILES = { 50.0, 90.0, 95.0, 99.0 };
+
+    protected static final int DEFAULT_ROLLING_WINDOW = 10000;
+
+    protected static final int DEFAULT_MAX_REQUESTS = 0;
+
+    // must be declared after the default values it uses
+    public static final StatConfig DEFAULT = new StatConfig();
+
+    protected Mode mode = Mode.exact;
+
+    protected int significantDigits = DEFAULT_SIGNIFICANT_DIGITS;
+
+    protected boolean offHeap;
+
+    protected MemoryBudget memoryBudget;
+
+    protected double[] percentiles = DEFAULT_PERCENTILES;
+
+    protected List<String> percentileNames = getNames(DEFAULT_PERCENTILES);
+
+    protected int timelineResolution = Timeline.DEFAULT_RESOLUTION;
+
+    protected int rollingWindow = DEFAULT_ROLLING_WINDOW;
+
+    protected boolean usl;
+
+    // window from the run start in ms, a duration of 0 means up to the end
+    protected long windowOffset, windowDuration;
+
+    protected boolean detectWindow;
+
+    protected RequestFilter filter = new RequestFilter();
+
+    protected NameNormalizer nameNormalizer = new NameNormalizer();
+
+    protected int maxRequests = DEFAULT_MAX_REQUESTS;
+
+    public StatConfig setMode(Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    public StatConfig setSignificantDigits(int significantDigits) {
+        if (significantDigits < 1 || significantDigits > 5) {
+            throw new IllegalArgumentException("Significant digits must be between 1 and 5: " + significantDigits);
+        }
+        this.significantDigits = significantDigits;
+        return this;
+    }
+
+    /**
+     * Stores the exact durations in direct buffers outside of the Java heap.
+     */
+    public StatConfig setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+        return this;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Limits the memory used by the exact durations of all the parsings, the durations that don't fit are spilled to
+     * sorted run files in the temporary directory.
+     */
+    public StatConfig setMaxMemory(long bytes, File directory) {
+        memoryBudget = new MemoryBudget(bytes, directory);
+        return this;
+    }
+
+    /**
+     * The memory budget of the exact durations, null if unlimited.
+     */
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets the percentiles to compute, they are reported in ascending order.
+     */
+    public StatConfig setPercentiles(double... percentiles) {
+        if (percentiles.length == 0) {
+            throw new IllegalArgumentException("At least one percentile is required");
+        }
+        double[] sorted = percentiles.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            if (!(sorted[i] > 0 && sorted[i] <= 100)) {
+                throw new IllegalArgumentException("Percentile must be in ]0, 100]: " + sorted[i]);
+            }
+            if (i > 0 && sorted[i] == sorted[i - 1]) {
+                throw new IllegalArgumentException("Duplicate percentile: " + sorted[i]);
+            }
+        }
+        this.percentiles = sorted;
+        percentileNames = getNames(sorted);
+        return this;
+    }
+
+    /**
+     * Parses a comma separated list of percentiles like {@code "50,90,99.9"}.
+     */
+    public StatConfig setPercentiles(String percentiles) {
+        String[] items = percentiles.split(",");
+        double[] values = new double[items.length];
+        for (int i = 0; i < items.length; i++) {
+            try {
+                values[i] = Double.parseDouble(items[i].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid percentile: " + items[i]);
+            }
+        }
+        return setPercentiles(values);
+    }
+
+    public double[] getPercentiles() {
+        return percentiles;
+    }
+
+    /**
+     * The percentile names like {@code p50} or {@code p99.9}, used as CSV columns.
+     */
+    public List<String> getPercentileNames() {
+        return percentileNames;
+    }
+
+    protected static List<String> getNames(double[] percentiles) {
+        List<String> ret = new ArrayList<>(percentiles.length);
+        for (double percentile : percentiles) {
+            ret.add("p" + BigDecimal.valueOf(percentile).stripTrailingZeros().toPlainString());
+        }
+        return ret;
+    }
+
+    /**
+     * Sets the size in ms of the timeline buckets.
+     */
+    public StatConfig setTimelineResolution(int resolution) {
+        if (resolution <= 0) {
+            throw new IllegalArgumentException("Invalid timeline resolution: " + resolution);
+        }
+        this.timelineResolution = resolution;
+        return this;
+    }
+
+    public int getTimelineResolution() {
+        return timelineResolution;
+    }
+
+    /**
+     * Sets the window in ms of the rolling percentiles, rounded to a multiple of the timeline resolution.
+     */
+    public StatConfig setRollingWindow(int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("Invalid rolling window: " + window);
+        }
+        this.rollingWindow = window;
+        return this;
+    }
+
+    public int getRollingWindow() {
+        return rollingWindow;
+    }
+
+    /**
+     * Fits the Universal Scalability Law on the throughput per level of active users.
+     */
+    public StatConfig setUsl(boolean usl) {
+        this.usl = usl;
+        return this;
+    }
+
+    public boolean isUsl() {
+        return usl;
+    }
+
+    /**
+     * Only the requests within the window are aggregated.
+     *
+     * @param offset the start of the window in ms from the run start
+     * @param duration the duration of the window in ms, 0 up to the end
+     */
+    public StatConfig setWindow(long offset, long duration) {
+        if (offset < 0 || duration < 0) {
+            throw new IllegalArgumentException("Invalid window: " + offset + ", " + duration);
+        }
+        this.windowOffset = offset;
+        this.windowDuration = duration;
+        return this;
+    }
+
+    public boolean hasWindow() {
+        return windowOffset > 0 || windowDuration > 0;
+    }
+
+    public long getWindowOffset() {
+        return windowOffset;
+    }
+
+    public long getWindowDuration() {
+        return windowDuration;
+    }
+
+    /**
+     * Detects the steady state window from the plateau of active users, the explicit window is ignored.
+     */
+    public StatConfig setDetectWindow(boolean detectWindow) {
+        this.detectWindow = detectWindow;
+        return this;
+    }
+
+    public boolean isDetectWindow() {
+        return detectWindow;
+    }
+
+    /**
+     * Only the requests accepted by the filter are aggregated, it is applied while parsing.
+     */
+    public StatConfig setFilter(RequestFilter filter) {
+        this.filter = filter == null ? new RequestFilter() : filter;
+        return this;
+    }
+
+    public RequestFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Rewrites the request names when they are read.
+     */
+    public StatConfig setNameNormalizer(NameNormalizer nameNormalizer) {
+        this.nameNormalizer = nameNormalizer == null ? new NameNormalizer() : nameNormalizer;
+        return this;
+    }
+
+    public NameNormalizer getNameNormalizer() {
+        return nameNormalizer;
+    }
+
+    /**
+     * Reports at most this number of requests: the most frequent ones and an {@code _other} request aggregating the
+     * rest, 0 for no limit.
+     */
+    public StatConfig setMaxRequests(int maxRequests) {
+        if (maxRequests < 0 || maxRequests == 1) {
+            throw new IllegalArgumentException("Invalid max requests: " + maxRequests);
+        }
+        this.maxRequests = maxRequests;
+        return this;
+    }
+
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getSignificantDigits() {
+        return significantDigits;
+    }
+
+    public boolean isHistogram() {
+        return mode == Mode.histogram;
+    }
+
+    @Override
+    public String toString() {
+        if (isHistogram()) {
+            return String.format("histogram, %d significant digits", significantDigits);
+        }
+        StringBuilder ret = new StringBuilder("exact");
+        if (offHeap) {
+            ret.append(", off-heap");
+        }
+        if (memoryBudget != null) {
+            ret.append(String.format(", %d MB max memory", memoryBudget.getLimit() / (1024 * 1024)));
+        }
+        return ret.toString();
+    }
+
+    public enum Mode {
+        // keep all the durations
+        exact,
+        // constant memory with a log-linear histogram
+        histogram
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.util.Collection;
+
+/**
+ * Detects the steady state window of a simulation from its active users: the plateau of each scenario starts once
+ * its users reach a ratio of their maximum and ends when they fall below it. The window is the intersection of the
+ * scenario plateaus, or the plateau of all the users when the scenarios don't overlap.
+ *
+ * @since 4.1
+ */
+public class SteadyState {
+
+    protected static final double PLATEAU_RATIO = 0.9;
+
+    /**
+     * Returns the window {start, end} in ms since the epoch, null when there are no users.
+     */
+    public static long[] detect(Collection<Timeline> scenarios, Timeline all) {
+        long start = Long.MIN_VALUE, end = Long.MAX_VALUE;
+        for (Timeline scenario : scenarios) {
+            long[] plateau = getPlateau(scenario);
+            if (plateau == null) {
+                continue;
+            }
+            start = Math.max(start, plateau[0]);
+            end = Math.min(end, plateau[1]);
+        }
+        if (start < end && start != Long.MIN_VALUE) {
+            return new long[] { start, end };
+        }
+        return getPlateau(all);
+    }
+
+    /**
+     * The buckets where the active users are above the plateau ratio, the first and last ones are excluded because
+     * they hold a part of the ramps.
+     */
+    protected static long[] getPlateau(Timeline timeline) {
+        int[] users = timeline.getActiveUsers();
+        int max = 0;
+        for (int value : users) {
+            max = Math.max(max, value);
+        }
+        if (max == 0) {
+            return null;
+        }
+        int first = -1, last = -1;
+        for (int i = 0; i < users.length; i++) {
+            if (users[i] >= PLATEAU_RATIO * max) {
+                if (first < 0) {
+                    first = i;
+                }
+                last = i;
+            }
+        }
+        if (last - first >= 2) {
+            first++;
+            last--;
+        }
+        int resolution = timeline.getResolution();
+        return new long[] { timeline.getStart() + (long) first * resolution,
+                timeline.getStart() + (long) (last + 1) * resolution };
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * An append-only history of simulation summaries, to build trend reports without the simulation files.
+ * <p>
+ * Each line of the file is the json summary of a run: the statistics of each request and a {@link LatencySketch} of
+ * its durations, a run is appended once. The size of a summary depends on the number of requests, not on the number
+ * of durations.
+ *
+ * @since 4.1
+ */
+public class SummaryStore {
+    private final static Logger log = Logger.getLogger(SummaryStore.class);
+
+    protected final File file;
+
+    public SummaryStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Appends the summary of a computed simulation, unless this run is already stored.
+     *
+     * @return false if the run was already stored
+     */
+    public synchronized boolean append(SimulationContext context) throws IOException {
+        Run run = Run.of(context);
+        // the lock guards the check and the write against other processes, the JVM threads are synchronized
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE)) {
+            FileLock lock = channel.lock();
+            try {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (run.id.equals(getId(line))) {
+                        return false;
+                    }
+                }
+                String json = run.toJson() + "\n";
+                long size = channel.size();
+                if (size > 0) {
+                    ByteBuffer last = ByteBuffer.allocate(1);
+                    channel.read(last, size - 1);
+                    if (last.get(0) != '\n') {
+                        // an interrupted write, skipped when reading
+                        json = "\n" + json;
+                    }
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+                channel.position(size);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } finally {
+                lock.release();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the id of a stored run without parsing its requests, the id is the first field written.
+     */
+    protected static String getId(String line) {
+        String prefix = "{\"id\":\"";
+        if (!line.startsWith(prefix)) {
+            return null;
+        }
+        for (int i = prefix.length(); i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                Object ret = JSONValue.parse(line.substring(prefix.length() - 1, i + 1));
+                return ret instanceof String ? (String) ret : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The stored runs in time order, without their sketches.
+     */
+    public List<Run> getRuns() throws IOException {
+        List<Run> ret = new ArrayList<>();
+        read(ret::add, false);
+        ret.sort((a, b) -> Long.compare(a.start, b.start));
+        return ret;
+    }
+
+    /**
+     * Reads the runs in the order they were appended.
+     */
+    public void read(Consumer<Run> consumer, boolean sketches) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        JSONParser parser = new JSONParser();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                Run run;
+                try {
+                    run = Run.of((JSONObject) parser.parse(line), sketches);
+                } catch (ParseException | RuntimeException e) {
+                    log.warn(String.format("Skipping invalid run at %s:%d", file, number));
+                    continue;
+                }
+                consumer.accept(run);
+            }
+        }
+    }
+
+    /**
+     * The summary of a simulation, the first request is the total of all requests.
+     */
+    public static class Run {
+        protected String id;
+
+        protected String simulation;
+
+        protected long start;
+
+        protected String startDate;
+
+        protected double duration;
+
+        protected int maxUsers;
+
+        protected String statistics;
+
+        protected List<String> percentiles;
+
+        protected final List<Request> requests = new ArrayList<>();
+
+        public static Run of(SimulationContext context) {
+            Run ret = new Run();
+            RequestStat all = context.simStat;
+            ret.simulation = context.simulationName;
+            ret.id = context.simulationName + "-" + all.start;
+            ret.start = all.start;
+            ret.startDate = all.startDate;
+            ret.duration = all.duration;
+            ret.maxUsers = context.maxUsers;
+            ret.statistics = context.getStatistics();
+            ret.percentiles = context.config.getPercentileNames();
+            ret.requests.add(Request.of(all, LatencySketch.of(context.concurrency)));
+            context.getRequests().forEach(stat -> ret.requests.add(Request.of(stat, LatencySketch.of(stat.concurrency))));
+            return ret;
+        }
+
+        protected static Run of(JSONObject json, boolean sketches) {
+            Run ret = new Run();
+            ret.id = (String) json.get("id");
+            ret.simulation = (String) json.get("simulation");
+            ret.start = getLong(json, "start");
+            ret.startDate = (String) json.get("startDate");
+            ret.duration = getDouble(json, "duration");
+            ret.maxUsers = (int) getLong(json, "maxUsers");
+            ret.statistics = (String) json.get("statistics");
+            ret.percentiles = new ArrayList<>();
+            for (Object name : (JSONArray) json.get("percentiles")) {
+                ret.percentiles.add((String) name);
+            }
+            for (Object request : (JSONArray) json.get("requests")) {
+                ret.requests.add(Request.of((JSONObject) request, sketches));
+            }
+            return ret;
+        }
+
+        protected String toJson() {
+            Map<String, Object> ret = new LinkedHashMap<>();
+            ret.put("id", id);
+            ret.put("simulation", simulation);
+            ret.put("start", start);
+            ret.put("startDate", startDate);
+            ret.put("duration", number(duration));
+            ret.put("maxUsers", maxUsers);
+            ret.put("statistics", statistics);
+            ret.put("percentiles", percentiles);
+            List<Object> jsonRequests = new ArrayList<>(requests.size());
+            requests.forEach(request -> jsonRequests.add(request.toJson()));
+            ret.put("requests", jsonRequests);
+            return JSONValue.toJSONString(ret);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getSimulation() {
+            return simulation;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public String getStartDate() {
+            return startDate;
+        }
+
+        public List<String> getPercentiles() {
+            return percentiles;
+        }
+
+        public Request getAll() {
+            return requests.get(0);
+        }
+
+        /**
+         * The requests sorted like {@link SimulationContext#getRequests()}, without the total.
+         */
+        public List<Request> getRequests() {
+            return requests.subList(1, requests.size());
+        }
+    }
+
+    public static class Request {
+        protected String scenario;
+
+        protected String request;
+
+        protected long start;
+
+        protected String startDate;
+
+        protected long count, errorCount, min, max, stddev;
+
+        protected double avg, rps, apdex;
+
+        protected long[] percentileValues;
+
+        // null when not read
+        protected LatencySketch sketch;
+
+        protected static Request of(RequestStat stat, LatencySketch sketch) {
+            Request ret = new Request();
+            ret.scenario = stat.scenario;
+            ret.request = stat.request;
+            ret.start = stat.start;
+            ret.startDate = stat.startDate;
+            ret.count = stat.count;
+            ret.errorCount = stat.errorCount;
+            ret.min = stat.min;
+            ret.max = stat.max;
+            ret.avg = stat.avg;
+            ret.stddev = stat.stddev;
+            ret.rps = stat.rps;
+            ret.apdex = stat.apdex.getScore();
+            ret.percentileValues = stat.percentileValues.clone();
+            ret.sketch = sketch;
+            return ret;
+        }
+
+        protected static Request of(JSONObject json, boolean sketches) {
+            Request ret = new Request();
+            ret.scenario = (String) json.get("scenario");
+            ret.request = (String) json.get("request");
+            ret.start = getLong(json, "start");
+            ret.startDate = (String) json.get("startDate");
+            ret.count = getLong(json, "count");
+            ret.errorCount = getLong(json, "errorCount");
+            ret.min = getLong(json, "min");
+            ret.max = getLong(json, "max");
+            ret.avg = getDouble(json, "avg");
+            ret.stddev = getLong(json, "stddev");
+            ret.rps = getDouble(json, "rps");
+            ret.apdex = getDouble(json, "apdex");
+            JSONArray values = (JSONArray) json.get("percentiles");
+            ret.percentileValues = new long[values.size()];
+            for (int i = 0; i < values.size(); i++) {
+                ret.percentileValues[i] = ((Number) values.get(i)).longValue();
+            }
+            if (sketches) {
+                ret.sketch = new LatencySketch();
+                for (Object bucket : (JSONArray) json.get("sketch")) {
+                    JSONArray pair = (JSONArray) bucket;
+                    ret.sketch.add(((Number) pair.get(0)).intValue(), ((Number) pair.get(1)).longValue());
+                }
+            }
+            return ret;
+        }
+
+        protected Map<String, Object> toJson() {
+            Map<String, Object> ret = new LinkedHashMap<>();
+            ret.put("scenario", scenario);
+            ret.put("request", request);
+            ret.put("start", start);
+            ret.put("startDate", startDate);
+            ret.put("count", count);
+            ret.put("errorCount", errorCount);
+            ret.put("min", min);
+            ret.put("max", max);
+            ret.put("avg", number(avg));
+            ret.put("stddev", stddev);
+            ret.put("rps", number(rps));
+            ret.put("apdex", number(apdex));
+            List<Long> values = new ArrayList<>(percentileValues.length);
+            for (long value : percentileValues) {
+                values.add(value);
+            }
+            ret.put("percentiles", values);
+            List<List<Long>> buckets = new ArrayList<>();
+            sketch.getBuckets().forEach(bucket -> {
+                List<Long> pair = new ArrayList<>(2);
+                pair.add(bucket[0]);
+                pair.add(bucket[1]);
+                buckets.add(pair);
+            });
+            ret.put("sketch", buckets);
+            return ret;
+        }
+
+        public String getScenario() {
+            return scenario;
+        }
+
+        public String getRequest() {
+            return request;
+        }
+
+        public String getStartDate() {
+            return startDate;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getErrorCount() {
+            return errorCount;
+        }
+
+        public double getAvg() {
+            return avg;
+        }
+
+        public long getStddev() {
+            return stddev;
+        }
+
+        public double getRps() {
+            return rps;
+        }
+
+        public double getApdex() {
+            return apdex;
+        }
+
+        public long[] getPercentileValues() {
+            return percentileValues;
+        }
+
+        public LatencySketch getSketch() {
+            return sketch;
+        }
+    }
+
+    // json has no infinite or NaN
+    protected static Double number(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? null : value;
+    }
+
+    protected static long getLong(JSONObject json, String key) {
+        Object value = json.get(key);
+        return value == null ? 0 : ((Number) value).longValue();
+    }
+
+    protected static double getDouble(JSONObject json, String key) {
+        Object value = json.get(key);
+        return value == null ? Double.NaN : ((Number) value).doubleValue();
+    }
+}
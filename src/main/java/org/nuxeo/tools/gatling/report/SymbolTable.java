@@ -0,0 +1,125 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.UnaryOperator;
+
+/**
+ * Interns UTF-8 byte sequences as Strings, a lookup of an already known value does not allocate. The interned value
+ * can be transformed, and the number of entries bounded: once full the values are decoded on each lookup.
+ *
+ * @since 4.1
+ */
+public class SymbolTable {
+
+    protected byte[][] keys = new byte[64][];
+
+    protected String[] values = new String[64];
+
+    protected int[] hashes = new int[64];
+
+    protected int size;
+
+    protected final int maxSize;
+
+    protected final UnaryOperator<String> transform;
+
+    public SymbolTable() {
+        this(Integer.MAX_VALUE, null);
+    }
+
+    public SymbolTable(int maxSize, UnaryOperator<String> transform) {
+        this.maxSize = maxSize;
+        this.transform = transform;
+    }
+
+    public String intern(byte[] buffer, int offset, int length) {
+        int hash = hash(buffer, offset, length);
+        int mask = keys.length - 1;
+        int i = hash & mask;
+        byte[] key;
+        while ((key = keys[i]) != null) {
+            if (hashes[i] == hash && equals(key, buffer, offset, length)) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        String ret = new String(buffer, offset, length, StandardCharsets.UTF_8);
+        if (transform != null) {
+            ret = transform.apply(ret);
+        }
+        if (size >= maxSize) {
+            return ret;
+        }
+        keys[i] = Arrays.copyOfRange(buffer, offset, offset + length);
+        values[i] = ret;
+        hashes[i] = hash;
+        if (++size > keys.length / 2) {
+            rehash();
+        }
+        return ret;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    protected void rehash() {
+        byte[][] oldKeys = keys;
+        String[] oldValues = values;
+        int[] oldHashes = hashes;
+        keys = new byte[oldKeys.length * 2][];
+        values = new String[oldKeys.length * 2];
+        hashes = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == null) {
+                continue;
+            }
+            int i = oldHashes[j] & mask;
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+            hashes[i] = oldHashes[j];
+        }
+    }
+
+    protected static int hash(byte[] buffer, int offset, int length) {
+        int ret = 1;
+        for (int i = offset; i < offset + length; i++) {
+            ret = 31 * ret + buffer[i];
+        }
+        // spread the bits
+        return ret ^ (ret >>> 16);
+    }
+
+    protected static boolean equals(byte[] key, byte[] buffer, int offset, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != buffer[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Benoit Delbosc
+ */
+package org.nuxeo.tools.gatling.report;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Completed requests, errors and active users in fixed-resolution time buckets starting at the simulation start.
+ * <p>
+ * Users are recorded as a net change per bucket and the highest level reached within the bucket relative to its
+ * start, so that timelines of consecutive chunks can be merged.
+ * <p>
+ * The timelines of requests hold no users and store their buckets from the first one where a request completed.
+ *
+ * @since 4.1
+ */
+public class Timeline {
+
+    private final static Logger log = Logger.getLogger(Timeline.class);
+
+    public static final int DEFAULT_RESOLUTION = 1000;
+
+    // events past this number of buckets are ignored, they come from a bad timestamp rather than from the run
+    protected static final int MAX_BUCKETS = 1 << 24;
+
+    // windows of the peak sustained throughput in seconds
+    protected static final int[] PEAK_WINDOWS = { 1, 10, 60 };
+
+    protected final long start;
+
+    protected final int resolution;
+
+    protected final boolean users;
+
+    // the first stored bucket, always 0 when recording users
+    protected int first;
+
+    // the bucket following the last stored one
+    protected int length;
+
+    protected int[] requests = new int[0];
+
+    protected int[] errors = new int[0];
+
+    protected int[] userDeltas = new int[0];
+
+    protected int[] userPeaks = new int[0];
+
+    protected boolean ignored;
+
+    /**
+     * @param start the simulation start in ms
+     * @param resolution the bucket size in ms
+     */
+    public Timeline(long start, int resolution) {
+        this(start, resolution, true);
+    }
+
+    protected Timeline(long start, int resolution, boolean users) {
+        if (resolution <= 0) {
+            throw new IllegalArgumentException("Invalid timeline resolution: " + resolution);
+        }
+        this.start = start;
+        this.resolution = resolution;
+        this.users = users;
+    }
+
+    /**
+     * A timeline of the requests and errors only, like the one of a request.
+     */
+    public static Timeline ofRequests(long start, int resolution) {
+        return new Timeline(start, resolution, false);
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public int getResolution() {
+        return resolution;
+    }
+
+    /**
+     * The number of buckets, from the first one where a request completed for the timelines of requests.
+     */
+    public int size() {
+        return length - first;
+    }
+
+    /**
+     * Records a request completed at the given time.
+     */
+    public void addRequest(long end, boolean success) {
+        int bucket = bucket(end);
+        if (bucket < 0) {
+            return;
+        }
+        requests[bucket - first]++;
+        if (!success) {
+            errors[bucket - first]++;
+        }
+    }
+
+    public void addUser(long time) {
+        changeUsers(bucket(time), 1);
+    }
+
+    public void endUser(long time) {
+        changeUsers(bucket(time), -1);
+    }
+
+    protected void changeUsers(int bucket, int delta) {
+        if (bucket < 0) {
+            return;
+        }
+        if (!users) {
+            throw new IllegalStateException("No users in a timeline of requests");
+        }
+        userDeltas[bucket] += delta;
+        userPeaks[bucket] = Math.max(userPeaks[bucket], userDeltas[bucket]);
+    }
+
+    /**
+     * Adds the requests of another timeline with the same start and resolution.
+     */
+    public void addRequests(Timeline other) {
+        if (other.size() == 0) {
+            return;
+        }
+        ensureRange(other.first, other.length);
+        for (int i = other.first; i < other.length; i++) {
+            requests[i - first] += other.requests[i - other.first];
+            errors[i - first] += other.errors[i - other.first];
+        }
+    }
+
+    /**
+     * Merges a timeline recorded after this one, like the timeline of the next chunk of a simulation file.
+     */
+    public void merge(Timeline other) {
+        addRequests(other);
+        if (!other.users) {
+            return;
+        }
+        for (int i = 0; i < other.length; i++) {
+            userPeaks[i] = Math.max(userPeaks[i], userDeltas[i] + other.userPeaks[i]);
+            userDeltas[i] += other.userDeltas[i];
+        }
+    }
+
+    /**
+     * Returns a copy holding only the users.
+     */
+    public Timeline copyUsers() {
+        Timeline ret = new Timeline(start, resolution);
+        if (length > 0) {
+            ret.ensureRange(0, length);
+        }
+        System.arraycopy(userDeltas, 0, ret.userDeltas, 0, length);
+        System.arraycopy(userPeaks, 0, ret.userPeaks, 0, length);
+        return ret;
+    }
+
+    /**
+     * Returns the bucket of the time, or -1 if the time is too far after the start to be recorded.
+     */
+    protected int bucket(long time) {
+        long index = (time - start) / resolution;
+        if (index >= MAX_BUCKETS) {
+            if (!ignored) {
+                log.warn("Ignoring events too far after the simulation start: " + time);
+                ignored = true;
+            }
+            return -1;
+        }
+        // events before the start are accounted in the first bucket
+        int ret = (int) Math.max(0, index);
+        ensureRange(ret, ret + 1);
+        return ret;
+    }
+
+    /**
+     * Makes room to store the buckets from {@code from} to {@code to} excluded.
+     */
+    protected void ensureRange(int from, int to) {
+        if (!users) {
+            if (length == 0) {
+                first = from;
+                length = from;
+            } else if (from < first) {
+                int count = first - from;
+                int capacity = Math.max(requests.length, size() + count);
+                requests = shift(requests, count, capacity);
+                errors = shift(errors, count, capacity);
+                first = from;
+            }
+        }
+        if (to <= length) {
+            return;
+        }
+        int size = to - first;
+        if (size > requests.length) {
+            int capacity = Math.max(size, Math.max(64, requests.length * 2));
+            requests = Arrays.copyOf(requests, capacity);
+            errors = Arrays.copyOf(errors, capacity);
+            if (users) {
+                userDeltas = Arrays.copyOf(userDeltas, capacity);
+                userPeaks = Arrays.copyOf(userPeaks, capacity);
+            }
+        }
+        length = to;
+    }
+
+    protected int[] shift(int[] values, int count, int capacity) {
+        int[] ret = new int[capacity];
+        System.arraycopy(values, 0, ret, count, size());
+        return ret;
+    }
+
+    /**
+     * The highest number of active users in each bucket.
+     */
+    public int[] getActiveUsers() {
+        if (!users) {
+            return new int[size()];
+        }
+        int[] ret = new int[length];
+        int level = 0;
+        for (int i = 0; i < length; i++) {
+            ret[i] = Math.max(0, level + userPeaks[i]);
+            level += userDeltas[i];
+        }
+        return ret;
+    }
+
+    /**
+     * The highest number of successful requests per second sustained over the window.
+     *
+     * @param window the window in seconds, must be a multiple of the resolution
+     * @return NaN if the window is shorter than the resolution or longer than the timeline
+     */
+    public double getPeakRps(int window) {
+        long windowMs = window * 1000L;
+        if (windowMs < resolution || windowMs % resolution != 0 || windowMs / resolution > length) {
+            return Double.NaN;
+        }
+        int buckets = (int) (windowMs / resolution);
+        long sum = 0, max = 0;
+        // no request completed before the first stored bucket
+        for (int i = 0; i < size(); i++) {
+            sum += requests[i] - errors[i];
+            if (i >= buckets) {
+                sum -= requests[i - buckets] - errors[i - buckets];
+            }
+            max = Math.max(max, sum);
+        }
+        return max / (double) window;
+    }
+
+    // accessors for the templates
+
+    /**
+     * The start time of each bucket in ms since the epoch.
+     */
+    public List<Long> getTimes() {
+        return new JsonList<Long>() {
+            @Override
+            public Long get(int index) {
+                return start + (long) (first + index) * resolution;
+            }
+
+            @Override
+            public int size() {
+                return Timeline.this.size();
+            }
+        };
+    }
+
+    /**
+     * The successful requests per second in each bucket.
+     */
+    public List<Double> getThroughput() {
+        return rates(requests, errors);
+    }
+
+    /**
+     * The errors per second in each bucket.
+     */
+    public List<Double> getErrors() {
+        return rates(errors, null);
+    }
+
+    public List<Integer> getUsers() {
+        int[] users = getActiveUsers();
+        return new JsonList<Integer>() {
+            @Override
+            public Integer get(int index) {
+                return users[index];
+            }
+
+            @Override
+            public int size() {
+                return users.length;
+            }
+        };
+    }
+
+    public List<Peak> getPeakRps() {
+        List<Peak> ret = new ArrayList<>(PEAK_WINDOWS.length);
+        for (int window : PEAK_WINDOWS) {
+            double rps = getPeakRps(window);
+            if (!Double.isNaN(rps)) {
+                ret.add(new Peak(window, rps));
+            }
+        }
+        return ret;
+    }
+
+    protected List<Double> rates(int[] counts, int[] minus) {
+        double seconds = resolution / 1000.0;
+        return new JsonList<Double>() {
+            @Override
+            public Double get(int index) {
+                int count = minus == null ? counts[index] : counts[index] - minus[index];
+                return Math.round(count / seconds * 100) / 100.0;
+            }
+
+            @Override
+            public int size() {
+                return Timeline.this.size();
+            }
+        };
+    }
+
+    public static class Peak {
+        protected final int window;
+
+        protected final double rps;
+
+        public Peak(int window, double rps) {
+            this.window = window;
+            this.rps = Math.round(rps * 100) / 100.0;
+        }
+
+        public int getWindow() {
+            return window;
+        }
+
+        public double getRps() {
+            return rps;
+        }
+    }
+}
@@ -18,8 +18,11 @@ package org.nuxeo.tools.gatling.report;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -33,6 +36,8 @@ public class TrendContext {
 
     protected List<String> scripts;
 
+    protected final String statistics;
+
     public TrendContext(List<SimulationContext> stats) {
         Set<String> names = new HashSet<>();
         List<String> requestNames = getRequestListSorted(stats.get(0));
@@ -52,6 +57,45 @@ public class TrendContext {
             }
         }
         scenario = String.join(" ", names);
+        statistics = stats.get(0).getStatistics();
+    }
+
+    protected TrendContext(String scenario, String statistics) {
+        this.scenario = scenario;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Builds the trend of runs read from a {@link SummaryStore}, in time order. The requests are the ones of the
+     * latest run.
+     *
+     * @since 4.1
+     */
+    public static TrendContext of(List<SummaryStore.Run> runs) {
+        Set<String> names = new LinkedHashSet<>();
+        runs.forEach(run -> names.add(run.simulation));
+        SummaryStore.Run last = runs.get(runs.size() - 1);
+        TrendContext ret = new TrendContext(String.join(" ", names), last.statistics);
+        List<String> requestNames = last.getRequests()
+                                        .stream()
+                                        .map(request -> request.request)
+                                        .collect(Collectors.toList());
+        Collections.reverse(requestNames);
+        for (int i = 0; i < requestNames.size(); i++) {
+            TrendStat trend = ret.new TrendStat();
+            trend.name = requestNames.get(i);
+            trend.indice = i;
+            ret.requests.add(trend);
+        }
+        for (SummaryStore.Run run : runs) {
+            Map<String, SummaryStore.Request> requests = new HashMap<>();
+            run.getRequests().forEach(request -> requests.put(request.request, request));
+            ret.all.add(run.getAll());
+            for (int i = 0; i < requestNames.size(); i++) {
+                ret.requests.get(i).add(requests.get(requestNames.get(i)));
+            }
+        }
+        return ret;
     }
 
     public TrendContext setScripts(List<String> scripts) {
@@ -94,6 +138,39 @@ public class TrendContext {
                 rps.add(stat.rps);
             }
         }
+
+        /**
+         * @since 4.1
+         */
+        public void add(SummaryStore.Request request) {
+            if (request == null) {
+                xvalues.add(null);
+                yvalues.add(null);
+                yerrors.add(null);
+                rps.add(null);
+            } else {
+                xvalues.add(String.format("'%s'", request.startDate));
+                yvalues.add(request.avg);
+                yerrors.add(request.stddev);
+                rps.add(request.rps);
+            }
+        }
+
+        public List<String> getXvalues() {
+            return JsonList.of(xvalues);
+        }
+
+        public List<Double> getYvalues() {
+            return JsonList.of(yvalues);
+        }
+
+        public List<Long> getYerrors() {
+            return JsonList.of(yerrors);
+        }
+
+        public List<Double> getRps() {
+            return JsonList.of(rps);
+        }
     }
 
 }
@@ -31,12 +31,19 @@ import java.net.MalformedURLException;
 import java.net.PasswordAuthentication;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.zip.GZIPInputStream;
 
 public class Utils {
 
     protected static final String GZ = "gz";
 
+    protected static final int GZIP_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
     public static void setBasicAuth(String user, String password) {
         if (user == null) {
             return;
@@ -55,7 +62,8 @@ public class Utils {
         } catch (MalformedURLException e) {
             throw new IllegalArgumentException("Malformed URL: " + url, e);
         }
-        return targetUrl.getProtocol() + "://" + targetUrl.getHost();
+        int port = targetUrl.getPort();
+        return targetUrl.getProtocol() + "://" + targetUrl.getHost() + (port == -1 ? "" : ":" + port);
     }
 
     public static void download(URL src, File dest) throws IOException {
@@ -100,6 +108,71 @@ public class Utils {
         return new FileReader(file);
     }
 
+    public static ReadableByteChannel getChannelFor(File file) throws IOException {
+        if (GZ.equals(getFileExtension(file))) {
+            return new GzipChannel(file, GZIP_THREADS);
+        }
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Returns a channel reading the {@code [from, to[} region of a file channel, the file channel is not closed.
+     */
+    public static ReadableByteChannel getChannelFor(FileChannel channel, long from, long to) {
+        return new ReadableByteChannel() {
+            long position = from;
+
+            boolean open = true;
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if (position >= to) {
+                    return -1;
+                }
+                ByteBuffer region = dst.duplicate();
+                ((Buffer) region).limit(region.position() + (int) Math.min(dst.remaining(), to - position));
+                int read = channel.read(region, position);
+                if (read > 0) {
+                    position += read;
+                    ((Buffer) dst).position(dst.position() + read);
+                }
+                return read;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                open = false;
+            }
+        };
+    }
+
+    /**
+     * Returns the offset following the first line terminator found at or after the position.
+     */
+    public static long nextLineOffset(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+        long size = channel.size();
+        while (position < size) {
+            ((Buffer) buffer).clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
     public static String getFileExtension(File file) {
         String name = file.getName();
         try {
@@ -16,10 +16,30 @@
  */
 package org.nuxeo.tools.gatling.report;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -90,6 +110,809 @@ public class TestParser {
         Assert.assertTrue(ret.toString().contains("_all"));
     }
 
+    @Test
+    public void parseWithHistogram() throws Exception {
+        SimulationContext exact = ParserFactory.getParser(getRessourceFile(SIM_V3_2_GZ)).parse();
+        StatConfig config = new StatConfig().setMode(StatConfig.Mode.histogram).setSignificantDigits(2);
+        SimulationContext ret = ParserFactory.getParser(getRessourceFile(SIM_V3_2_GZ)).setStatConfig(config).parse();
+        Assert.assertEquals("histogram, 2 significant digits", ret.getStatistics());
+        RequestStat expected = exact.getSimStat();
+        RequestStat stat = ret.getSimStat();
+        Assert.assertEquals(expected.count, stat.count);
+        Assert.assertEquals(expected.min, stat.min);
+        Assert.assertEquals(expected.max, stat.max);
+        Assert.assertEquals(expected.avg, stat.avg, 0.001);
+        Assert.assertEquals(expected.stddev, stat.stddev, 1);
+        Assert.assertEquals(expected.apdex.getScore(), stat.apdex.getScore(), 0.0001);
+        // 2 significant digits: 1% relative error
+        Assert.assertEquals(expected.p50, stat.p50, expected.p50 / 100.0 + 1);
+        Assert.assertEquals(expected.p95, stat.p95, expected.p95 / 100.0 + 1);
+        Assert.assertEquals(expected.p99, stat.p99, expected.p99 / 100.0 + 1);
+        Assert.assertEquals(101, stat.getDurations().size());
+    }
+
+    @Test
+    public void computeHistogramStdDeviation() throws Exception {
+        // a large offset with a small spread cancels out in a sum of squares
+        long offset = 3_000_000_000L;
+        Histogram all = new Histogram(3);
+        Histogram first = new Histogram(3);
+        Histogram second = new Histogram(3);
+        double sum = 0;
+        for (int i = 0; i < 100_000; i++) {
+            long value = offset + i % 7;
+            all.record(value);
+            (i < 30_000 ? first : second).record(value);
+            sum += value;
+        }
+        double mean = sum / all.getCount();
+        double squares = 0;
+        for (int i = 0; i < 100_000; i++) {
+            squares += (offset + i % 7 - mean) * (offset + i % 7 - mean);
+        }
+        double expected = Math.sqrt(squares / (all.getCount() - 1));
+        Assert.assertEquals(expected, all.getStdDeviation(), 1e-6);
+        first.add(second);
+        first.add(new Histogram(3));
+        Assert.assertEquals(all.getCount(), first.getCount());
+        Assert.assertEquals(expected, first.getStdDeviation(), 1e-6);
+        Assert.assertEquals(mean, first.getMean(), 1e-6);
+    }
+
+    @Test
+    public void parseWithPercentiles() throws Exception {
+        SimulationContext exact = ParserFactory.getParser(getRessourceFile(SIM_V3_2_GZ)).parse();
+        StatConfig config = new StatConfig().setPercentiles("99.9, 50,75");
+        Assert.assertEquals(Arrays.asList("p50", "p75", "p99.9"), config.getPercentileNames());
+        Assert.assertTrue(RequestStat.header(config).contains("\tmin\tp50\tp75\tp99.9\tmax\t"));
+        SimulationContext ret = ParserFactory.getParser(getRessourceFile(SIM_V3_2_GZ)).setStatConfig(config).parse();
+        RequestStat stat = ret.getSimStat();
+        Assert.assertEquals(3, stat.getPercentiles().size());
+        Assert.assertEquals(exact.getSimStat().p50, stat.getPercentiles().get(0).value);
+        Assert.assertTrue(stat.getPercentiles().get(1).value <= stat.getPercentiles().get(2).value);
+        Assert.assertTrue(stat.getPercentiles().get(2).value <= stat.max);
+    }
+
+    @Test
+    public void mergeRequestSamples() throws Exception {
+        Durations merged = Durations.merge(Arrays.asList(durations(2, 5), durations(), durations(1, 2, 8),
+                durations(3)), false);
+        Assert.assertEquals(6, merged.size());
+        Assert.assertEquals(1, merged.get(0));
+        Assert.assertEquals(8, merged.get(5));
+        Assert.assertTrue(merged.isSorted());
+        SimulationContext ret = ParserFactory.getParser(getRessourceFile(SIM_V3_2_GZ)).parse();
+        RequestStat all = ret.getSimStat();
+        long count = ret.getRequests().stream().mapToLong(RequestStat::getCount).sum();
+        Assert.assertEquals(count, all.getCount());
+        // the parts are streamed once, keeping an evenly spaced sample of the merged durations
+        List<Double> durations = all.getDurations();
+        Assert.assertEquals(RequestStat.MAX_SAMPLE, durations.size());
+        List<Durations> parts = new ArrayList<>();
+        ret.getRequests().forEach(request -> parts.add(request.durations));
+        Durations expected = Durations.merge(parts, false);
+        Assert.assertEquals(count, expected.size());
+        for (int i = 0; i < durations.size(); i++) {
+            Assert.assertEquals(expected.get((int) ((long) i * (count - 1) / (RequestStat.MAX_SAMPLE - 1))),
+                    durations.get(i), 0);
+        }
+        RequestStat.Box box = all.getBox();
+        Assert.assertEquals(RequestStat.percentile(i -> expected.get((int) i), count, 25), box.getQ1(), 0);
+        Assert.assertEquals(RequestStat.percentile(i -> expected.get((int) i), count, 75), box.getQ3(), 0);
+    }
+
+    protected Durations durations(long... values) {
+        Durations ret = new Durations(false);
+        for (long value : values) {
+            ret.add(value);
+        }
+        return ret;
+    }
+
+    @Test
+    public void storeDurations() throws Exception {
+        for (boolean offHeap : new boolean[] { false, true }) {
+            Durations durations = new Durations(offHeap);
+            int size = 3 * Durations.CHUNK_SIZE + 17;
+            for (int i = 0; i < size; i++) {
+                durations.add((i * 7919L) % size);
+            }
+            Assert.assertEquals(size, durations.size());
+            Assert.assertFalse(durations.isSorted());
+            durations.sort();
+            for (int i = 0; i < size; i++) {
+                Assert.assertEquals(i, durations.get(i));
+            }
+        }
+        StatConfig config = new StatConfig().setOffHeap(true);
+        SimulationContext exact = ParserFactory.getParser(getRessourceFile(SIM_V3_2_GZ)).parse();
+        SimulationContext ret = ParserFactory.getParser(getRessourceFile(SIM_V3_2_GZ)).setStatConfig(config).parse();
+        Assert.assertEquals(exact.toString(), ret.toString());
+    }
+
+    @Test
+    public void spillDurations() throws Exception {
+        SimulationContext exact = ParserFactory.getParser(getRessourceFile(SIM_V3_2_GZ)).parse();
+        // room for 2 chunks
+        StatConfig config = new StatConfig().setMaxMemory(2 * Durations.CHUNK_BYTES, null);
+        SimulationContext ret = ParserFactory.getParser(getRessourceFile(SIM_V3_2_GZ)).setStatConfig(config).parse();
+        Assert.assertEquals(exact.toString(), ret.toString());
+        // the aggregate keeps a sample of the merged durations, without spilling a merged copy
+        Assert.assertEquals(0, config.getMemoryBudget().getSpilled());
+        Assert.assertEquals(RequestStat.MAX_SAMPLE, ret.getSimStat().getDurations().size());
+        Assert.assertEquals(exact.getSimStat().getSample(), ret.getSimStat().getSample());
+        // a single request larger than the budget is spilled, it keeps the values at each percentile
+        NameNormalizer single = new NameNormalizer().addRule(".*", "request");
+        exact = ParserFactory.getParser(getRessourceFile(SIM_V3_2_GZ))
+                             .setStatConfig(new StatConfig().setNameNormalizer(single))
+                             .parse();
+        config = new StatConfig().setNameNormalizer(single).setMaxMemory(Durations.CHUNK_BYTES, null);
+        ret = ParserFactory.getParser(getRessourceFile(SIM_V3_2_GZ)).setStatConfig(config).parse();
+        Assert.assertTrue(config.getMemoryBudget().getSpilled() > 0);
+        Assert.assertEquals(exact.toString(), ret.toString());
+        RequestStat spilled = ret.getRequests().get(0);
+        Assert.assertEquals(101, spilled.getDurations().size());
+        Assert.assertEquals("false", spilled.boxpoints());
+        Assert.assertEquals(exact.getSimStat().getSample(), ret.getSimStat().getSample());
+    }
+
+    @Test
+    public void mergeManyRuns() throws Exception {
+        // room for a single chunk, each chunk is spilled to its own run
+        MemoryBudget budget = new MemoryBudget(Durations.CHUNK_BYTES, null);
+        Durations first = new Durations(false, budget);
+        Durations second = new Durations(false, budget);
+        int size = 3 * Durations.MAX_FAN_IN * Durations.CHUNK_SIZE;
+        for (int i = 0; i < size; i++) {
+            first.add((i * 7919L) % size);
+            if (i % 2 == 0) {
+                second.add(size - i);
+            }
+        }
+        Assert.assertTrue(first.runs.size() < Durations.MAX_FAN_IN);
+        Assert.assertEquals(size, first.getSpilledCount() + first.size());
+        // the first list holding the memory is asked to spill
+        Assert.assertTrue(first.spillRequested || second.spillRequested);
+        long[] count = new long[1];
+        int[] previous = { Integer.MIN_VALUE };
+        Durations.forEachSorted(Arrays.asList(first, second), value -> {
+            Assert.assertTrue(previous[0] <= value);
+            previous[0] = value;
+            count[0]++;
+        });
+        Assert.assertEquals(size + size / 2, count[0]);
+        first.delete();
+        second.delete();
+        Assert.assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    public void parseInParallelChunks() throws Exception {
+        for (String filename : Arrays.asList(SIM_GZ, SIM_V3_2_GZ)) {
+            File file = getUncompressedSimulation(filename);
+            try {
+                SimulationContext expected = ParserFactory.getParser(file).parse();
+                SimulationParser parser = ParserFactory.getParser(file).setParallelism(4);
+                parser.minChunkSize = 4096;
+                Assert.assertTrue(parser.useChunks());
+                SimulationContext ret = parser.parse();
+                Assert.assertEquals(expected.getSimStat().getCount(), ret.getSimStat().getCount());
+                Assert.assertEquals(expected.toString(), ret.toString());
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void computeTimeline() throws Exception {
+        File file = getUncompressedSimulation(SIM_V3_2_GZ);
+        try {
+            SimulationContext ret = ParserFactory.getParser(file).parse();
+            RequestStat stat = ret.getSimStat();
+            Timeline timeline = ret.getTimeline();
+            Assert.assertEquals(stat.start, timeline.getStart());
+            Assert.assertEquals(stat.count, IntStream.of(timeline.requests).sum());
+            Assert.assertEquals(stat.errorCount, IntStream.of(timeline.errors).sum());
+            Assert.assertEquals(stat.maxUsers, IntStream.of(timeline.getActiveUsers()).max().getAsInt());
+            // all the users have ended
+            Assert.assertEquals(0, IntStream.of(timeline.userDeltas).sum());
+            Assert.assertTrue(timeline.getPeakRps(1) >= timeline.getPeakRps(10));
+            Assert.assertTrue(timeline.getPeakRps(10) >= stat.rps);
+            Assert.assertEquals(timeline.size(), timeline.getTimes().size());
+            for (RequestStat request : ret.getRequests()) {
+                Assert.assertEquals(request.count, IntStream.of(request.getTimeline().requests).sum());
+            }
+            Assert.assertEquals(2, ret.getScenarioTimelines().size());
+            // same buckets when parsing in chunks
+            SimulationParser parser = ParserFactory.getParser(file).setParallelism(4);
+            parser.minChunkSize = 4096;
+            Timeline chunked = parser.parse().getTimeline();
+            Assert.assertEquals(timeline.getThroughput(), chunked.getThroughput());
+            Assert.assertEquals(timeline.getErrors(), chunked.getErrors());
+            Assert.assertEquals(timeline.getUsers(), chunked.getUsers());
+            // coarser buckets
+            StatConfig config = new StatConfig().setTimelineResolution(10000);
+            Timeline coarse = ParserFactory.getParser(file).setStatConfig(config).parse().getTimeline();
+            Assert.assertEquals((timeline.size() + 9) / 10, coarse.size());
+            Assert.assertTrue(Double.isNaN(coarse.getPeakRps(1)));
+            Assert.assertEquals(stat.maxUsers, IntStream.of(coarse.getActiveUsers()).max().getAsInt());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void computeRequestTimeline() throws Exception {
+        // the buckets of a request start at its first one and hold no users
+        Timeline request = Timeline.ofRequests(1000, 1000);
+        request.addRequest(3_601_500, true);
+        request.addRequest(3_599_500, false);
+        Assert.assertEquals(3, request.size());
+        Assert.assertEquals(Arrays.asList(3_599_000L, 3_600_000L, 3_601_000L), request.getTimes());
+        Assert.assertEquals(Arrays.asList(0.0, 0.0, 1.0), request.getThroughput());
+        Assert.assertEquals(Arrays.asList(1.0, 0.0, 0.0), request.getErrors());
+        Assert.assertTrue(request.requests.length < 100);
+        Assert.assertEquals(0, request.userDeltas.length);
+        Timeline all = new Timeline(1000, 1000);
+        all.addUser(1000);
+        all.addRequests(request);
+        Assert.assertEquals(3601, all.size());
+        Assert.assertEquals(2, IntStream.of(all.requests).sum());
+        // a bad timestamp is ignored instead of growing the buckets up to it
+        request.addRequest(Long.MAX_VALUE, true);
+        all.addRequest(Long.MAX_VALUE, true);
+        all.endUser(Long.MAX_VALUE);
+        Assert.assertEquals(3, request.size());
+        Assert.assertEquals(3601, all.size());
+        Assert.assertEquals(2, IntStream.of(all.requests).sum());
+    }
+
+    @Test
+    public void computeHeatmap() throws Exception {
+        for (long value : new long[] { 0, 7, 8, 9, 100, 1000, 123456, Integer.MAX_VALUE }) {
+            int bucket = Heatmap.latencyBucket(value);
+            Assert.assertTrue(Heatmap.lowerBound(bucket) <= value);
+            Assert.assertTrue(value <= Heatmap.upperBound(bucket));
+            Assert.assertTrue(Heatmap.upperBound(bucket) - Heatmap.lowerBound(bucket) <= value / 8);
+        }
+        SimulationContext ret = ParserFactory.getParser(getRessourceFile(SIM_V3_2_GZ)).parse();
+        Heatmap heatmap = ret.getHeatmap();
+        long count = 0;
+        for (List<Integer> line : heatmap.getCounts()) {
+            count += line.stream().mapToInt(Integer::intValue).sum();
+        }
+        Assert.assertEquals(ret.getSimStat().count, count);
+        Assert.assertEquals(heatmap.getLatencies().size(), heatmap.getCounts().size());
+        Assert.assertEquals(heatmap.getTimes().size(), heatmap.getCounts().get(0).size());
+        // a window covering the whole run gives the percentiles of the simulation up to the bucket precision
+        Long[][] percentiles = heatmap.getRollingPercentiles(new double[] { 50, 99 }, heatmap.size());
+        RequestStat stat = ret.getSimStat();
+        long p50 = percentiles[0][heatmap.size() - 1];
+        long p99 = percentiles[1][heatmap.size() - 1];
+        Assert.assertTrue(p50 >= stat.p50 && p50 <= stat.p50 * 1.125 + 1);
+        Assert.assertTrue(p99 >= stat.p99 && p99 <= stat.p99 * 1.125 + 1);
+        List<Heatmap.Series> rolling = ret.getRollingPercentiles();
+        Assert.assertEquals(4, rolling.size());
+        Assert.assertEquals("p95", rolling.get(2).getName());
+        Assert.assertEquals(heatmap.size(), rolling.get(2).getValues().size());
+        // a bad timestamp is ignored instead of growing the rows up to it
+        int size = heatmap.size();
+        heatmap.record(Long.MAX_VALUE, 10);
+        Assert.assertEquals(size, heatmap.size());
+    }
+
+    @Test
+    public void computeConcurrencyOfOverlappingRequests() throws Exception {
+        // a user runs long requests while thousands of short users start and end, lines are logged at their end
+        long t0 = 1567446796962L;
+        List<String> lines = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        int users = 3000;
+        for (int i = 1; i <= users; i++) {
+            long start = t0 + 10 * i;
+            long end = start + 5000;
+            log(lines, times, start, "USER\tShort\t" + i + "\tSTART\t" + start + "\t" + start);
+            log(lines, times, start + 50, "REQUEST\t" + i + "\t\tShort request\t" + (start + 1) + "\t" + (start + 50)
+                    + "\tOK\t ");
+            log(lines, times, end, "USER\tShort\t" + i + "\tEND\t" + start + "\t" + end);
+        }
+        log(lines, times, t0, "USER\tLong\t0\tSTART\t" + t0 + "\t" + t0);
+        List<Integer> expected = new ArrayList<>();
+        long last = t0;
+        for (long start = t0 + 103; start + 20_000 < t0 + 10 * users; start += 3000) {
+            log(lines, times, start + 20_000, "REQUEST\t0\t\tLong request\t" + start + "\t" + (start + 20_000)
+                    + "\tOK\t ");
+            // the user 0 and the short users started and not ended
+            int started = (int) Math.min(users, (start - t0) / 10);
+            int ended = (int) Math.max(0, Math.min(users, (start - t0 - 5000) / 10));
+            expected.add(1 + started - ended);
+            last = start + 20_000;
+        }
+        log(lines, times, last + 1, "USER\tLong\t0\tEND\t" + t0 + "\t" + (last + 1));
+        Integer[] order = new Integer[lines.size()];
+        Arrays.setAll(order, i -> i);
+        Arrays.sort(order, (a, b) -> Long.compare(times.get(a), times.get(b)));
+        File file = File.createTempFile("simulation", ".log");
+        try (OutputStream out = new FileOutputStream(file)) {
+            StringBuilder content = new StringBuilder("RUN\torg.nuxeo.Sim\tsim\t" + t0 + "\t \t3.2.1\n");
+            for (Integer i : order) {
+                content.append(lines.get(i)).append('\n');
+            }
+            out.write(content.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        try {
+            SimulationContext ret = ParserFactory.getParser(file).parse();
+            Concurrency.Curve curve = getRequest(ret, "Long request").getScalability();
+            List<Integer> levels = new ArrayList<>();
+            curve.getLevels().forEach(level -> {
+                for (long i = 0; i < level.getCount(); i++) {
+                    levels.add(level.getUsers());
+                }
+            });
+            expected.sort(null);
+            Assert.assertEquals(expected, levels);
+            // same curves when the long requests start in previous chunks
+            SimulationParser parser = ParserFactory.getParser(file).setParallelism(4);
+            parser.minChunkSize = 4096;
+            Assert.assertTrue(parser.useChunks());
+            SimulationContext chunked = parser.parse();
+            for (String name : Arrays.asList("Long request", "Short request")) {
+                assertSameCurve(getRequest(ret, name).getScalability(),
+                        getRequest(chunked, name).getScalability());
+            }
+            assertSameCurve(ret.getSimStat().getScalability(), chunked.getSimStat().getScalability());
+        } finally {
+            file.delete();
+        }
+    }
+
+    protected static void log(List<String> lines, List<Long> times, long time, String line) {
+        lines.add(line);
+        times.add(time);
+    }
+
+    protected static RequestStat getRequest(SimulationContext context, String name) {
+        return context.getRequests().stream().filter(request -> name.equals(request.request)).findFirst().get();
+    }
+
+    protected static void assertSameCurve(Concurrency.Curve expected, Concurrency.Curve actual) {
+        Assert.assertEquals(expected.getUsers(), actual.getUsers());
+        Assert.assertEquals(expected.getP95(), actual.getP95());
+        Assert.assertEquals(expected.getThroughput(), actual.getThroughput());
+    }
+
+    @Test
+    public void computeScalability() throws Exception {
+        File file = getUncompressedSimulation(SIM_V3_2_GZ);
+        try {
+            StatConfig config = new StatConfig().setUsl(true);
+            SimulationContext ret = ParserFactory.getParser(file).setStatConfig(config).parse();
+            Concurrency.Curve curve = ret.getSimStat().getScalability();
+            Assert.assertEquals(ret.getSimStat().count,
+                    curve.getLevels().stream().mapToLong(Concurrency.Level::getCount).sum());
+            double seconds = curve.getLevels().stream().mapToDouble(Concurrency.Level::getSeconds).sum();
+            Timeline timeline = ret.getTimeline();
+            Assert.assertTrue(seconds > 0 && seconds <= timeline.size() * timeline.getResolution() / 1000.0);
+            Assert.assertTrue(curve.getUsers().get(curve.getUsers().size() - 1) <= ret.getSimStat().maxUsers);
+            for (RequestStat request : ret.getRequests()) {
+                Assert.assertEquals(request.count,
+                        request.getScalability().getLevels().stream().mapToLong(Concurrency.Level::getCount).sum());
+            }
+            // same levels when parsing in chunks
+            SimulationParser parser = ParserFactory.getParser(file).setParallelism(4).setStatConfig(config);
+            parser.minChunkSize = 4096;
+            Concurrency.Curve chunked = parser.parse().getSimStat().getScalability();
+            Assert.assertEquals(curve.getUsers(), chunked.getUsers());
+            Assert.assertEquals(curve.getP95(), chunked.getP95());
+            Assert.assertEquals(curve.getThroughput(), chunked.getThroughput());
+        } finally {
+            file.delete();
+        }
+        // fit the law on a throughput that follows it
+        Concurrency.Usl expected = new Concurrency.Usl(10, 0.05, 0.001);
+        List<Concurrency.Level> levels = new ArrayList<>();
+        for (int users = 1; users <= 50; users++) {
+            long successes = Math.round(expected.getThroughput(users) * 1000);
+            levels.add(new Concurrency.Level(users, 1000000, successes, successes, new int[] { (int) successes }));
+        }
+        Concurrency.Usl usl = Concurrency.Usl.fit(levels);
+        Assert.assertEquals(10, usl.getLambda(), 0.01);
+        Assert.assertEquals(0.05, usl.getSigma(), 0.001);
+        Assert.assertEquals(0.001, usl.getKappa(), 0.0001);
+        Assert.assertEquals(Math.sqrt(0.95 / 0.001), usl.getPeakUsers(), 0.5);
+        Assert.assertNull(Concurrency.Usl.fit(levels.subList(0, 2)));
+    }
+
+    @Test
+    public void parseWithWindow() throws Exception {
+        File directory = Files.createTempDirectory("window").toFile();
+        File file = new File(directory, "simulation.log");
+        try {
+            uncompress(SIM_V3_2_GZ, file);
+            SimulationContext all = ParserFactory.getParser(file).parse();
+            Assert.assertNull(all.getWindow());
+            StatConfig config = new StatConfig().setWindow(10000, 20000);
+            SimulationContext ret = ParserFactory.getParser(file).setStatConfig(config).parse();
+            Assert.assertEquals("from +10.0s to +30.0s", ret.getWindow());
+            RequestStat stat = ret.getSimStat();
+            Assert.assertTrue(stat.count > 0 && stat.count < all.getSimStat().count);
+            Assert.assertTrue(stat.end <= ret.start + 30000);
+            // no request completed before the window
+            Assert.assertEquals(0, IntStream.of(ret.getTimeline().requests).limit(10).sum());
+            SimulationParser parser = ParserFactory.getParser(file).setParallelism(4).setStatConfig(config);
+            parser.minChunkSize = 4096;
+            Assert.assertEquals(ret.toString(), parser.parse().toString());
+
+            config = new StatConfig().setDetectWindow(true);
+            SimulationContext steady = ParserFactory.getParser(file).setStatConfig(config).parse();
+            Assert.assertTrue(steady.getWindow().startsWith("steady state from +"));
+            Assert.assertTrue(steady.getSimStat().count < all.getSimStat().count);
+            Assert.assertTrue(steady.windowStart > steady.start && steady.windowEnd < all.getSimStat().end);
+            // same window from the cache
+            SimulationCache cache = new SimulationCache(null);
+            ParserFactory.getParser(file).setCache(cache).parse();
+            SimulationContext cached = ParserFactory.getParser(file).setStatConfig(config).setCache(cache).parse();
+            Assert.assertEquals(steady.getWindow(), cached.getWindow());
+            Assert.assertEquals(steady.toString(), cached.toString());
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void parseWithFilter() throws Exception {
+        File directory = Files.createTempDirectory("filter").toFile();
+        File file = new File(directory, "simulation.log");
+        try {
+            uncompress(SIM_V3_2_GZ, file);
+            SimulationContext all = ParserFactory.getParser(file).parse();
+            Assert.assertNull(all.getFilter());
+
+            StatConfig config = new StatConfig().setFilter(
+                    new RequestFilter().setIncludeRequest("^Get document with").setExcludeRequest("lock"));
+            SimulationContext ret = ParserFactory.getParser(file).setStatConfig(config).parse();
+            Assert.assertEquals("request ~ ^Get document with, request !~ lock", ret.getFilter());
+            Assert.assertEquals(5, ret.getRequests().size());
+            Assert.assertEquals(6492, ret.getSimStat().count);
+            // same users and run start
+            Assert.assertEquals(all.getSimStat().maxUsers, ret.getSimStat().maxUsers);
+            Assert.assertEquals(all.getSimStat().start, ret.getSimStat().start);
+            SimulationParser parser = ParserFactory.getParser(file).setParallelism(4).setStatConfig(config);
+            parser.minChunkSize = 4096;
+            Assert.assertEquals(ret.toString(), parser.parse().toString());
+
+            config = new StatConfig().setFilter(new RequestFilter().setIncludeScenario("UpdateDocuments"));
+            ret = ParserFactory.getParser(file).setStatConfig(config).parse();
+            Assert.assertEquals(1, ret.getRequests().size());
+            Assert.assertEquals("Update File", ret.getRequests().get(0).request);
+            Assert.assertEquals(1696, ret.getSimStat().count);
+            parser = ParserFactory.getParser(file).setParallelism(4).setStatConfig(config);
+            parser.minChunkSize = 4096;
+            Assert.assertEquals(ret.toString(), parser.parse().toString());
+
+            config = new StatConfig().setFilter(new RequestFilter().setSuccess(false));
+            ret = ParserFactory.getParser(file).setStatConfig(config).parse();
+            Assert.assertEquals(all.getSimStat().errorCount, ret.getSimStat().count);
+            Assert.assertEquals(0, ret.getSimStat().successCount);
+
+            // an absolute time range gives the same requests as the relative window
+            long start = all.getSimStat().start;
+            config = new StatConfig().setFilter(new RequestFilter().setTimeRange(start + 10000, start + 30000));
+            ret = ParserFactory.getParser(file).setStatConfig(config).parse();
+            SimulationContext window = ParserFactory.getParser(file)
+                                                    .setStatConfig(new StatConfig().setWindow(10000, 20000))
+                                                    .parse();
+            Assert.assertEquals(window.getSimStat().count, ret.getSimStat().count);
+
+            // a filtered parse is not cached, the cache is filtered when loaded
+            config = new StatConfig().setFilter(new RequestFilter().setExcludeScenario("Update"));
+            SimulationCache cache = new SimulationCache(null);
+            ret = ParserFactory.getParser(file).setStatConfig(config).setCache(cache).parse();
+            Assert.assertEquals(all.getSimStat().count - 1696, ret.getSimStat().count);
+            Assert.assertFalse(cache.getCacheFile(file).exists());
+            SimulationContext cached = ParserFactory.getParser(file).setCache(cache).parse();
+            Assert.assertEquals(all.toString(), cached.toString());
+            Assert.assertTrue(cache.getCacheFile(file).exists());
+            cached = ParserFactory.getParser(file).setStatConfig(config).setCache(cache).parse();
+            Assert.assertEquals(ret.toString(), cached.toString());
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void computeBox() throws Exception {
+        SimulationContext ret = ParserFactory.getParser(getRessourceFile(SIM_V3_2_GZ)).parse();
+        RequestStat all = ret.getSimStat();
+        List<Double> sample = all.getSample();
+        Assert.assertEquals(RequestStat.MAX_SAMPLE, sample.size());
+        Assert.assertEquals(all.min, sample.get(0), 0);
+        Assert.assertEquals(all.max, sample.get(sample.size() - 1), 0);
+        for (int i = 1; i < sample.size(); i++) {
+            Assert.assertTrue(sample.get(i - 1) <= sample.get(i));
+        }
+        RequestStat.Box box = all.getBox();
+        Assert.assertEquals(all.p50, box.getMedian(), 0);
+        Assert.assertTrue(box.getQ1() <= box.getMedian() && box.getMedian() <= box.getQ3());
+        Assert.assertTrue(box.getLowerFence() >= all.min && box.getLowerFence() <= box.getQ1());
+        Assert.assertTrue(box.getUpperFence() <= all.max && box.getUpperFence() >= box.getQ3());
+        Assert.assertTrue(box.getUpperFence() <= box.getQ3() + 1.5 * (box.getQ3() - box.getQ1()));
+        // the quartiles of the sample are close to the exact ones
+        SimulationContext histogram = ParserFactory.getParser(getRessourceFile(SIM_V3_2_GZ))
+                                                   .setStatConfig(new StatConfig().setMode(StatConfig.Mode.histogram))
+                                                   .parse();
+        Assert.assertEquals(101, histogram.getSimStat().getSample().size());
+        Assert.assertEquals(box.getQ3(), histogram.getSimStat().getBox().getQ3(), box.getQ3() / 100.0);
+        // small requests are fully plotted
+        ret.getRequests()
+           .stream()
+           .filter(request -> request.count <= RequestStat.MAX_SAMPLE)
+           .forEach(request -> Assert.assertEquals(request.count, request.getSample().size()));
+    }
+
+    @Test
+    public void normalizeNames() throws Exception {
+        NameNormalizer normalizer = new NameNormalizer().collapseIds();
+        Assert.assertEquals("GET /api/v1/id/{uuid}/children",
+                normalizer.normalize("GET /api/v1/id/0a1b2c3d-4e5f-6789-abcd-ef0123456789/children"));
+        Assert.assertEquals("Get page {n} of {hex}", normalizer.normalize("Get page 12 of 5f3a9c0d12e4b7a8"));
+        Assert.assertEquals("/doc/{n}.json?rev={n}", normalizer.normalize("/doc/42.json?rev=3"));
+        Assert.assertEquals("Get document v2", normalizer.normalize("Get document v2"));
+        normalizer = new NameNormalizer().addRule("^(Get document).*=$1");
+        Assert.assertEquals("Get document", normalizer.normalize("Get document with lock"));
+
+        StatConfig config = new StatConfig().setNameNormalizer(normalizer);
+        SimulationContext all = ParserFactory.getParser(getRessourceFile(SIM_V3_2_GZ)).parse();
+        SimulationContext ret = ParserFactory.getParser(getRessourceFile(SIM_V3_2_GZ)).setStatConfig(config).parse();
+        Assert.assertEquals(2, ret.getRequests().size());
+        Assert.assertEquals(all.getSimStat().count - 1696, ret.reqStats.get("Get document").count);
+        Assert.assertEquals(all.getSimStat().toString(), ret.getSimStat().toString());
+    }
+
+    @Test
+    public void limitRequests() throws Exception {
+        File directory = Files.createTempDirectory("limit").toFile();
+        File file = new File(directory, "simulation.log");
+        try {
+            uncompress(SIM_V3_2_GZ, file);
+            SimulationContext all = ParserFactory.getParser(file).parse();
+            Assert.assertEquals(10, all.getRequests().size());
+            StatConfig config = new StatConfig().setMaxRequests(3);
+            SimulationContext ret = ParserFactory.getParser(file).setStatConfig(config).parse();
+            Assert.assertEquals(3, ret.getRequests().size());
+            RequestStat other = ret.reqStats.get(SimulationContext.OTHER_REQUESTS);
+            Assert.assertNotNull(other);
+            Assert.assertEquals(ret.getSimStat().count, ret.getRequests().stream().mapToLong(r -> r.count).sum());
+            // kept requests are the most frequent
+            ret.getRequests()
+               .stream()
+               .filter(request -> request != other)
+               .forEach(request -> Assert.assertEquals(all.reqStats.get(request.request).count, request.count));
+            Assert.assertEquals(all.getSimStat().toString(), ret.getSimStat().toString());
+            SimulationParser parser = ParserFactory.getParser(file).setParallelism(4).setStatConfig(config);
+            parser.minChunkSize = 4096;
+            SimulationContext chunked = parser.parse();
+            Assert.assertEquals(3, chunked.getRequests().size());
+            Assert.assertEquals(all.getSimStat().toString(), chunked.getSimStat().toString());
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void parseWithCache() throws Exception {
+        File directory = Files.createTempDirectory("cache").toFile();
+        File file = new File(directory, "simulation.log");
+        try {
+            uncompress(SIM_V3_2_GZ, file);
+            SimulationCache cache = new SimulationCache(null);
+            SimulationContext expected = ParserFactory.getParser(file).parse();
+            Assert.assertNull(cache.load(file, null, StatConfig.DEFAULT));
+            // write the cache from a parallel parsing
+            SimulationParser parser = ParserFactory.getParser(file).setParallelism(4).setCache(cache);
+            parser.minChunkSize = 4096;
+            Assert.assertEquals(expected.toString(), parser.parse().toString());
+            Assert.assertTrue(cache.getCacheFile(file).isFile());
+            SimulationContext cached = cache.load(file, null, StatConfig.DEFAULT);
+            Assert.assertNotNull(cached);
+            cached.computeStat();
+            Assert.assertEquals(expected.toString(), cached.toString());
+            Assert.assertEquals(expected.toString(), ParserFactory.getParser(file).setCache(cache).parse().toString());
+            // the cache is invalidated by a change in the middle of the file, even with the same size and time
+            long modified = file.lastModified();
+            byte[] content = Files.readAllBytes(file.toPath());
+            byte[] changed = content.clone();
+            int digit = changed.length / 2;
+            while (!Character.isDigit(changed[digit])) {
+                digit++;
+            }
+            changed[digit] = (byte) (changed[digit] == '0' ? '1' : '0');
+            Files.write(file.toPath(), changed);
+            Assert.assertTrue(file.setLastModified(modified));
+            Assert.assertNull(cache.load(file, null, StatConfig.DEFAULT));
+            Files.write(file.toPath(), content);
+            Assert.assertTrue(file.setLastModified(modified));
+            Assert.assertNotNull(cache.load(file, null, StatConfig.DEFAULT));
+            Assert.assertTrue(file.setLastModified(modified - 10000));
+            Assert.assertNull(cache.load(file, null, StatConfig.DEFAULT));
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void parseWithCacheSharedRequests() throws Exception {
+        File directory = Files.createTempDirectory("cache").toFile();
+        File file = new File(directory, "simulation.log");
+        try {
+            // the users of both scenarios run the whole simulation and share a request name
+            long t0 = 1567446796962L;
+            StringBuilder content = new StringBuilder("RUN\torg.nuxeo.Sim\tsim\t" + t0 + "\t \t3.2.1\n");
+            for (int user = 1; user <= 4; user++) {
+                content.append("USER\t").append(user <= 2 ? "A" : "B").append('\t').append(user).append(
+                        "\tSTART\t").append(t0 + user).append('\t').append(t0 + user).append('\n');
+            }
+            long time = t0 + 10;
+            for (int i = 0; i < 2000; i++) {
+                int user = 1 + i % 4;
+                long duration = user <= 2 ? 10 : 4;
+                content.append("REQUEST\t").append(user).append("\t\tShared request\t").append(time).append('\t')
+                       .append(time + duration).append("\tOK\t \n");
+                time += duration;
+            }
+            for (int user = 1; user <= 4; user++) {
+                content.append("USER\t").append(user <= 2 ? "A" : "B").append('\t').append(user).append(
+                        "\tEND\t").append(t0 + user).append('\t').append(time + user).append('\n');
+            }
+            Files.write(file.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+            StatConfig config = new StatConfig().setFilter(new RequestFilter().setIncludeScenario("B"));
+            SimulationContext expected = ParserFactory.getParser(file).setStatConfig(config).parse();
+            Assert.assertEquals(1000, expected.getSimStat().getCount());
+            Assert.assertEquals(4, expected.getSimStat().avg, 0.001);
+            // the cache is written by a parallel parsing where the users started in previous chunks
+            SimulationCache cache = new SimulationCache(null);
+            SimulationParser parser = ParserFactory.getParser(file).setParallelism(4).setCache(cache);
+            parser.minChunkSize = 4096;
+            Assert.assertTrue(parser.useChunks());
+            Assert.assertEquals(2000, parser.parse().getSimStat().getCount());
+            Assert.assertTrue(cache.getCacheFile(file).isFile());
+            SimulationContext cached = ParserFactory.getParser(file).setStatConfig(config).setCache(cache).parse();
+            Assert.assertEquals(expected.toString(), cached.toString());
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void followSimulation() throws Exception {
+        // the statistics are computed at each refresh without sorting all the durations
+        Assert.assertEquals(StatConfig.Mode.histogram, new App(new String[] { "--follow", "x" }).options.getStatMode());
+        Assert.assertEquals(StatConfig.Mode.exact, new App(new String[] { "x" }).options.getStatMode());
+        Assert.assertEquals(StatConfig.Mode.exact,
+                new App(new String[] { "--follow", "--stat-mode", "exact", "x" }).options.getStatMode());
+        byte[] content = getUncompressedContent(SIM_V3_2_GZ);
+        File file = File.createTempFile("simulation", ".log");
+        try (SimulationFollower follower = new SimulationFollower(file, null, StatConfig.DEFAULT)) {
+            Assert.assertEquals(0, follower.update());
+            Assert.assertNull(follower.getContext());
+            // append the file in 3 parts cut in the middle of lines
+            int[] cuts = { 0, 17, content.length / 2 + 5, content.length };
+            for (int i = 1; i < cuts.length; i++) {
+                try (OutputStream out = new FileOutputStream(file, true)) {
+                    out.write(content, cuts[i - 1], cuts[i] - cuts[i - 1]);
+                }
+                follower.update();
+                if (follower.getContext() != null) {
+                    follower.getContext().computeStat();
+                }
+            }
+            SimulationContext expected = ParserFactory.getParser(file).parse();
+            Assert.assertEquals(expected.toString(), follower.getContext().toString());
+            // truncate and write again
+            SimulationContext previous = follower.getContext();
+            Files.write(file.toPath(), Arrays.copyOf(content, content.length / 3));
+            follower.update();
+            Assert.assertNotSame(previous, follower.getContext());
+            Assert.assertTrue(follower.getContext().getSimStat().getCount() < expected.getSimStat().getCount());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void parseMultiMemberGzip() throws Exception {
+        byte[] content = getUncompressedContent(SIM_V3_2_GZ);
+        File file = File.createTempFile("simulation", ".log.gz");
+        try {
+            // concatenate small gzip members like parallel compressors do
+            try (OutputStream out = new FileOutputStream(file)) {
+                for (int i = 0; i < content.length; i += 100_000) {
+                    ByteArrayOutputStream member = new ByteArrayOutputStream();
+                    try (GZIPOutputStream gzip = new GZIPOutputStream(member)) {
+                        gzip.write(content, i, Math.min(100_000, content.length - i));
+                    }
+                    member.writeTo(out);
+                }
+            }
+            SimulationContext expected = ParserFactory.getParser(getRessourceFile(SIM_V3_2_GZ)).parse();
+            SimulationContext ret = ParserFactory.getParser(file).parse();
+            Assert.assertEquals(16095, ret.getSimStat().getCount());
+            Assert.assertEquals(expected.toString().replace(getRessourceFile(SIM_V3_2_GZ).getAbsolutePath(), ""),
+                    ret.toString().replace(file.getAbsolutePath(), ""));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void parseSimulationFilesConcurrently() throws Exception {
+        File invalid = File.createTempFile("simulation", ".log");
+        try {
+            Files.write(invalid.toPath(), "not a simulation\n".getBytes(StandardCharsets.UTF_8));
+            List<File> files = Arrays.asList(getRessourceFile(SIM_GZ), getRessourceFile(SIM_SMALL_V2_1), invalid,
+                    getRessourceFile(SIM_V2_3), getRessourceFile(SIM_SMALL_V3_2));
+            List<String> args = new ArrayList<>(Arrays.asList("--parse-workers", "3", "--parse-memory", "1"));
+            files.forEach(file -> args.add(file.getAbsolutePath()));
+            App app = new App(args.toArray(new String[0]));
+            app.statConfig = app.options.getStatConfig();
+            // over the memory limit the files are parsed one at a time
+            app.parseSimulationFiles();
+            List<String> expected = new ArrayList<>();
+            files.stream().filter(file -> file != invalid).forEach(file -> expected.add(file.getAbsolutePath()));
+            List<String> parsed = new ArrayList<>();
+            app.stats.forEach(context -> parsed.add(context.filePath));
+            Assert.assertEquals(expected, parsed);
+        } finally {
+            invalid.delete();
+        }
+    }
+
+    @Test
+    public void readRecords() throws Exception {
+        String content = "ASSERTION\tAAECAAMCAAAAAAAAAFRA\r\n" + "REQUEST\t1\t\t\"Get doc\"\t1567181198538 \t1567181198797\tOK\t \r\n"
+                + "\n" + "REQUEST\t1\t\tGet doc\t1567181198873\t1567181236234\tKO";
+        ReadableByteChannel channel = Channels.newChannel(
+                new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+        SymbolTable symbols = new SymbolTable();
+        // use a tiny buffer to check lines crossing buffer boundaries
+        try (SimulationReader reader = new SimulationReader(channel, 8)) {
+            SimulationRecord record = reader.next();
+            Assert.assertEquals(8, record.size());
+            Assert.assertEquals(SimulationRecord.Keyword.REQUEST, record.getKeyword(0));
+            Assert.assertEquals(1567181198538L, record.getLong(4));
+            Assert.assertTrue(record.is(6, SimulationParser.OK));
+            String name = record.intern(3, symbols);
+            Assert.assertEquals("Get doc", name);
+            record = reader.next();
+            Assert.assertEquals(7, record.size());
+            Assert.assertFalse(record.is(6, SimulationParser.OK));
+            Assert.assertTrue(name == record.intern(3, symbols));
+            Assert.assertNull(reader.next());
+        }
+        Assert.assertEquals(1, symbols.size());
+    }
+
+    /**
+     * Uncompresses a gzipped simulation into a temporary file, to delete once done.
+     */
+    protected File getUncompressedSimulation(String filename) throws IOException {
+        return uncompress(filename, File.createTempFile("simulation", ".log"));
+    }
+
+    protected File uncompress(String filename, File file) throws IOException {
+        try (InputStream in = new GZIPInputStream(new FileInputStream(getRessourceFile(filename)))) {
+            Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return file;
+    }
+
+    protected byte[] getUncompressedContent(String filename) throws IOException {
+        try (InputStream in = new GZIPInputStream(new FileInputStream(getRessourceFile(filename)))) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
     protected File getRessourceFile(String filename) throws FileNotFoundException {
         ClassLoader classLoader = getClass().getClassLoader();
         if (classLoader.getResource(filename) == null) {
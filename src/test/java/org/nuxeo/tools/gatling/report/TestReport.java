@@ -17,19 +17,37 @@
 package org.nuxeo.tools.gatling.report;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
 public class TestReport {
 
     protected static final String SIM_GZ = "simulation-1.log.gz";
@@ -47,6 +65,17 @@ public class TestReport {
         Assert.assertTrue(writer.toString().contains("simulation sim50bench"));
     }
 
+    @Test
+    public void generateHistogramSimulationReport() throws Exception {
+        StatConfig config = new StatConfig().setMode(StatConfig.Mode.histogram);
+        List<SimulationContext> stats = Collections.singletonList(
+                ParserFactory.getParser(getResourceFile(SIM_GZ)).setStatConfig(config).parse());
+        Writer writer = new StringWriter();
+        new Report(stats).setWriter(writer).create();
+        // System.out.println(writer);
+        Assert.assertTrue(writer.toString().contains("histogram, 3 significant digits"));
+    }
+
     @Test
     public void generateTrendReport() throws Exception {
         List<SimulationContext> stats = new ArrayList<>(SIMS_GZ.size());
@@ -64,6 +93,328 @@ public class TestReport {
         Assert.assertTrue(writer.toString().contains("Trend report"));
     }
 
+    @Test
+    public void generateTrendReportFromHistory() throws Exception {
+        List<SimulationContext> stats = new ArrayList<>(SIMS_GZ.size());
+        for (String file : SIMS_GZ) {
+            stats.add(ParserFactory.getParser(getResourceFile(file)).parse());
+        }
+        File directory = Files.createTempDirectory("history").toFile();
+        try {
+            SummaryStore store = new SummaryStore(new File(directory, "history.json"));
+            // appended once, in any order
+            for (int i = stats.size() - 1; i > 0; i--) {
+                Assert.assertTrue(store.append(stats.get(i)));
+            }
+            // an interrupted write is skipped
+            Files.write(new File(directory, "history.json").toPath(), "{\"id\":\"interrupted".getBytes(),
+                    StandardOpenOption.APPEND);
+            Assert.assertTrue(store.append(stats.get(0)));
+            Assert.assertFalse(store.append(stats.get(0)));
+            List<SummaryStore.Run> runs = store.getRuns();
+            Assert.assertEquals(stats.size(), runs.size());
+            Assert.assertTrue(runs.get(0).getStart() <= runs.get(1).getStart());
+            Assert.assertNull(runs.get(0).getAll().getSketch());
+
+            List<SummaryStore.Run> withSketches = new ArrayList<>();
+            store.read(withSketches::add, true);
+            SummaryStore.Run run = withSketches.get(withSketches.size() - 1);
+            SimulationContext context = stats.get(0);
+            Assert.assertEquals(context.simStat.count, run.getAll().getCount());
+            for (SummaryStore.Request request : run.getRequests()) {
+                RequestStat stat = context.reqStats.get(request.getRequest());
+                LatencySketch sketch = request.getSketch();
+                Assert.assertEquals(stat.count, sketch.getCount());
+                Assert.assertEquals(stat.p50, sketch.getPercentile(50), stat.p50 / 8.0 + 1);
+                Assert.assertEquals(stat.max, sketch.getPercentile(100), stat.max / 8.0 + 1);
+            }
+            LatencySketch merged = new LatencySketch();
+            withSketches.forEach(stored -> merged.merge(stored.getAll().getSketch()));
+            Assert.assertEquals(stats.stream().mapToLong(stat -> stat.simStat.count).sum(), merged.getCount());
+
+            // the trend of the history is the trend of the simulations
+            TrendContext trend = new TrendContext(stats);
+            TrendContext fromHistory = TrendContext.of(runs);
+            Assert.assertEquals(trend.all.getXvalues().toString(), fromHistory.all.getXvalues().toString());
+            Assert.assertEquals(trend.all.getYvalues().toString(), fromHistory.all.getYvalues().toString());
+            Assert.assertEquals(trend.all.getRps().toString(), fromHistory.all.getRps().toString());
+            Assert.assertEquals(trend.requests.size(), fromHistory.requests.size());
+
+            Writer writer = new StringWriter();
+            new Report(Collections.emptyList()).setWriter(writer).setHistory(runs).create();
+            Assert.assertTrue(writer.toString().contains("Trend report"));
+            Assert.assertTrue(writer.toString().contains(trend.all.getYvalues().toString()));
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void generateGzipReport() throws Exception {
+        List<SimulationContext> stats = Collections.singletonList(ParserFactory.getParser(getResourceFile(SIM_GZ)).parse());
+        Writer writer = new StringWriter();
+        new Report(stats).setWriter(writer).create();
+        File directory = Files.createTempDirectory("report").toFile();
+        try {
+            String reportPath = new Report(stats).setOutputDirectory(directory).gzip(true).create();
+            Assert.assertTrue(reportPath.endsWith("index.html.gz"));
+            try (InputStream in = new GZIPInputStream(new FileInputStream(reportPath))) {
+                // the streamed arrays give the same text
+                Assert.assertEquals(writer.toString(), IOUtils.toString(in, Charset.defaultCharset().name()));
+            }
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void generateLazyReport() throws Exception {
+        List<SimulationContext> stats = Collections.singletonList(ParserFactory.getParser(getResourceFile(SIM_GZ)).parse());
+        File directory = Files.createTempDirectory("report").toFile();
+        try {
+            String reportPath = new Report(stats).setOutputDirectory(directory).lazy(true).create();
+            String index = FileUtils.readFileToString(new File(reportPath));
+            Assert.assertTrue(index.contains("loadRequest("));
+            Assert.assertFalse(index.contains("dataResponse"));
+            for (RequestStat request : stats.get(0).getRequests()) {
+                File data = new File(directory, "data/request-" + request.indice + ".js");
+                Assert.assertTrue(data.exists());
+                Assert.assertTrue(FileUtils.readFileToString(data)
+                                           .startsWith("requestData[" + request.indice + "] = {"));
+            }
+            // a custom template is not affected
+            Writer writer = new StringWriter();
+            new Report(stats).setWriter(writer).lazy(true).yamlReport(true).create();
+            Assert.assertFalse(writer.toString().contains("loadRequest("));
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void downloadGraphiteImages() throws Exception {
+        List<SimulationContext> stats = Collections.singletonList(ParserFactory.getParser(getResourceFile(SIM_GZ)).parse());
+        AtomicInteger flaky = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/dashboard/load/bench", exchange -> respond(exchange, 200,
+                "{\"state\": {\"graphs\": [[\"cpu\", {\"title\": \"cpu\"}, \"/render?target=cpu\"],"
+                        + "[\"flaky\", {\"title\": \"flaky\"}, \"/render?target=flaky\"],"
+                        + "[\"slow\", {\"title\": \"slow\"}, \"/render?target=slow\"],"
+                        + "[\"missing\", {\"title\": \"missing\"}, \"/render?target=missing\"]]}}"));
+        server.createContext("/render", exchange -> {
+            String query = exchange.getRequestURI().getQuery();
+            if (query.startsWith("target=flaky") && flaky.incrementAndGet() == 1) {
+                respond(exchange, 503, "busy");
+            } else if (query.startsWith("target=slow")) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                respond(exchange, 200, "png");
+            } else if (query.startsWith("target=missing")) {
+                respond(exchange, 404, "not found");
+            } else {
+                respond(exchange, 200, "png");
+            }
+        });
+        ExecutorService executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        File directory = Files.createTempDirectory("graphite").toFile();
+        Downloader downloader = new Downloader().setTimeouts(1000, 200).setRetries(1, 10);
+        try {
+            String url = "http://localhost:" + server.getAddress().getPort() + "/dashboard/#bench";
+            Graphite graphite = new Graphite(url, null, null, stats.get(0), directory, null, downloader,
+                    false);
+            // the constructor does not wait for the images
+            Assert.assertEquals(4, graphite.images.size());
+            graphite.await();
+            Assert.assertEquals(2, flaky.get());
+            Assert.assertEquals("png", FileUtils.readFileToString(graphite.images.get(0).getFile(directory)));
+            Assert.assertEquals("png", FileUtils.readFileToString(graphite.images.get(1).getFile(directory)));
+            Assert.assertNotEquals("png", FileUtils.readFileToString(graphite.images.get(2).getFile(directory)));
+            Assert.assertEquals(0, graphite.images.get(3).getFile(directory).length());
+
+            Writer writer = new StringWriter();
+            stats.get(0).simStat.graphite = null;
+            new Report(stats).setWriter(writer)
+                             .setOutputDirectory(directory)
+                             .includeGraphite(url, null, null, null)
+                             .setDownloader(downloader)
+                             .create();
+            Assert.assertTrue(writer.toString().contains("title=\"flaky\""));
+        } finally {
+            stats.get(0).simStat.graphite = null;
+            downloader.close();
+            server.stop(0);
+            executor.shutdownNow();
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void plotGraphiteSeries() throws Exception {
+        StatConfig config = new StatConfig().setTimelineResolution(60000);
+        List<SimulationContext> stats = Collections.singletonList(
+                ParserFactory.getParser(getResourceFile(SIM_GZ)).setStatConfig(config).parse());
+        long start = stats.get(0).simStat.start / 60000 * 60;
+        List<String> queries = Collections.synchronizedList(new ArrayList<>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/dashboard/load/bench", exchange -> respond(exchange, 200,
+                "{\"state\": {\"graphs\": [[\"cpu\", {\"title\": \"cpu\"}, \"/render?target=cpu\"],"
+                        + "[\"down\", {\"title\": \"down\"}, \"/render?target=down\"]]}}"));
+        server.createContext("/render", exchange -> {
+            String query = exchange.getRequestURI().getQuery();
+            queries.add(query);
+            if (query.startsWith("target=down")) {
+                respond(exchange, 404, "not found");
+                return;
+            }
+            // 10s points, a gap in the second minute
+            StringBuilder json = new StringBuilder("[{\"target\": \"cpu.user\", \"datapoints\": [");
+            for (int i = 0; i < 12; i++) {
+                json.append(i > 0 ? ", " : "").append(i < 6 ? "[" + i + ".0, " : "[null, ");
+                json.append(start + i * 10).append("]");
+            }
+            respond(exchange, 200, json.append("]}]").toString());
+        });
+        server.start();
+        Downloader downloader = new Downloader().setRetries(0, 0);
+        try {
+            String url = "http://localhost:" + server.getAddress().getPort() + "/dashboard/#bench";
+            Graphite graphite = new Graphite(url, null, null, stats.get(0), null, null, downloader, true);
+            Assert.assertTrue(graphite.images.isEmpty());
+            List<MetricsChart> charts = graphite.getCharts();
+            Assert.assertEquals(1, charts.size());
+            Assert.assertEquals("cpu", charts.get(0).getTitle());
+            MetricsChart.Trace trace = charts.get(0).getTraces().get(0);
+            Assert.assertEquals("cpu.user", trace.getName());
+            Assert.assertEquals(Arrays.asList(start * 1000, start * 1000 + 60000), trace.getTimes());
+            Assert.assertEquals("[2.5, null]", trace.getValues().toString());
+            Assert.assertTrue(queries.get(1).contains("&format=json&maxDataPoints="));
+
+            stats.get(0).simStat.graphite = graphite;
+            Writer writer = new StringWriter();
+            new Report(stats).setWriter(writer).create();
+            Assert.assertTrue(writer.toString().contains("Plotly.newPlot('graphite0Div', graphite0Data"));
+            Assert.assertFalse(writer.toString().contains("graphite1Div"));
+        } finally {
+            stats.get(0).simStat.graphite = null;
+            downloader.close();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void plotPrometheusQueries() throws Exception {
+        List<SimulationContext> stats = Collections.singletonList(ParserFactory.getParser(getResourceFile(SIM_GZ)).parse());
+        long start = stats.get(0).simStat.start / 1000;
+        List<String> queries = Collections.synchronizedList(new ArrayList<>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/v1/query_range", exchange -> {
+            String query = exchange.getRequestURI().getQuery();
+            queries.add(query);
+            if (query.contains("query=bad")) {
+                respond(exchange, 400, "{\"status\": \"error\", \"error\": \"parse error\"}");
+                return;
+            }
+            respond(exchange, 200, "{\"status\": \"success\", \"data\": {\"resultType\": \"matrix\", \"result\": ["
+                    + "{\"metric\": {\"__name__\": \"up\", \"job\": \"nuxeo\", \"instance\": \"a:8080\"}, "
+                    + "\"values\": [[" + start + ".5, \"1\"], [" + (start + 1) + ".5, \"NaN\"]]}]}}");
+        });
+        server.start();
+        Downloader downloader = new Downloader().setRetries(0, 0);
+        try {
+            String url = "http://localhost:" + server.getAddress().getPort() + "/";
+            Prometheus prometheus = new Prometheus(url, Arrays.asList("up{job=\"nuxeo\"}", "bad("), stats.get(0),
+                    downloader);
+            List<MetricsChart> charts = prometheus.getCharts();
+            Assert.assertEquals(1, charts.size());
+            Assert.assertEquals("prometheus0", charts.get(0).getId());
+            Assert.assertEquals("up{job=\"nuxeo\"}", charts.get(0).getTitle());
+            MetricsChart.Trace trace = charts.get(0).getTraces().get(0);
+            Assert.assertEquals("up{instance=a:8080, job=nuxeo}", trace.getName());
+            Assert.assertEquals(Arrays.asList(start * 1000, start * 1000 + 1000), trace.getTimes());
+            Assert.assertEquals("[1.0, null]", trace.getValues().toString());
+            Assert.assertEquals(2, queries.size());
+            Assert.assertTrue(queries.get(0).contains("&step=1.000"));
+
+            Writer writer = new StringWriter();
+            new Report(stats).setWriter(writer)
+                             .includePrometheus(url, Collections.singletonList("up"))
+                             .setDownloader(downloader)
+                             .create();
+            Assert.assertTrue(writer.toString().contains("Plotly.newPlot('prometheus0Div', prometheus0Data"));
+            Assert.assertEquals(3, queries.size());
+        } finally {
+            stats.get(0).simStat.metrics.clear();
+            downloader.close();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void cacheGraphiteDownloads() throws Exception {
+        List<SimulationContext> stats = Collections.singletonList(ParserFactory.getParser(getResourceFile(SIM_GZ)).parse());
+        AtomicInteger hits = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/dashboard/load/bench", exchange -> {
+            hits.incrementAndGet();
+            respond(exchange, 200, "{\"state\": {\"graphs\": [[\"cpu\", {\"title\": \"cpu\"}, \"/render?target=cpu\"]]}}");
+        });
+        server.createContext("/render", exchange -> {
+            hits.incrementAndGet();
+            respond(exchange, 200, "png");
+        });
+        server.start();
+        File directory = Files.createTempDirectory("graphite").toFile();
+        DownloadCache cache = new DownloadCache(new File(directory, "cache"), DownloadCache.DEFAULT_TTL);
+        Downloader downloader = new Downloader().setCache(cache);
+        try {
+            String url = "http://localhost:" + server.getAddress().getPort() + "/dashboard/#bench";
+            // the simulation window is closed, the entries are immutable
+            Graphite graphite = new Graphite(url, null, null, stats.get(0), directory, null, downloader, false);
+            graphite.await();
+            Assert.assertEquals(2, hits.get());
+            File image = graphite.images.get(0).getFile(directory);
+            Assert.assertTrue(image.delete());
+            new Graphite(url, null, null, stats.get(0), directory, null, downloader, false).await();
+            Assert.assertEquals(2, hits.get());
+            Assert.assertEquals("png", FileUtils.readFileToString(image));
+
+            // an open window expires
+            URL open = new URL(url);
+            cache.put(open, "old".getBytes("UTF-8"), false);
+            Assert.assertNotNull(cache.get(open, false));
+            Assert.assertNull(cache.get(open, true));
+            DownloadCache expired = new DownloadCache(new File(directory, "cache"), 0);
+            Assert.assertNull(expired.get(open, false));
+        } finally {
+            downloader.close();
+            server.stop(0);
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    protected static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Test
+    public void writeJsonList() throws Exception {
+        List<List<Integer>> values = JsonList.of(Arrays.asList(JsonList.of(Arrays.asList(1, 2)),
+                JsonList.of(Collections.emptyList()), null));
+        Writer writer = new StringWriter();
+        ((JsonList<?>) values).writeTo(writer);
+        Assert.assertEquals(values.toString(), writer.toString());
+        Assert.assertEquals("[[1, 2], [], null]", writer.toString());
+    }
+
     protected File getResourceFile(String filename) throws FileNotFoundException {
         ClassLoader classLoader = getClass().getClassLoader();
         if (classLoader.getResource(filename) == null) {